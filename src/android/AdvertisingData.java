@@ -0,0 +1,316 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Flyweight view over a raw advertising record (advertising data + scan response).
+ *
+ * The record is a sequence of AD structures: [length][type][length - 1 bytes of data].
+ * Fields are read in place from the wrapped array, so one instance can be re-wrapped for
+ * every advertisement without creating garbage. Only getLocalName allocates, the name
+ * filters only call it for names that aren't ASCII.
+ *
+ * Instances are not thread safe. Scan callbacks are delivered serially, so the plugin keeps
+ * a single instance for the scan thread.
+ */
+class AdvertisingData {
+
+    // AD types, see Bluetooth Assigned Numbers "Generic Access Profile"
+    static final int FLAGS = 0x01;
+    static final int INCOMPLETE_UUID16 = 0x02;
+    static final int COMPLETE_UUID16 = 0x03;
+    static final int INCOMPLETE_UUID32 = 0x04;
+    static final int COMPLETE_UUID32 = 0x05;
+    static final int INCOMPLETE_UUID128 = 0x06;
+    static final int COMPLETE_UUID128 = 0x07;
+    static final int SHORT_LOCAL_NAME = 0x08;
+    static final int COMPLETE_LOCAL_NAME = 0x09;
+    static final int TX_POWER_LEVEL = 0x0A;
+    static final int SERVICE_DATA_UUID16 = 0x16;
+    static final int SERVICE_DATA_UUID32 = 0x20;
+    static final int SERVICE_DATA_UUID128 = 0x21;
+    static final int MANUFACTURER_DATA = 0xFF;
+
+    static final int TX_POWER_NOT_PRESENT = Integer.MIN_VALUE;
+
+    // 0000xxxx-0000-1000-8000-00805f9b34fb
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] data;
+    private int length;
+
+    // cursor over the AD structures
+    private int next;
+    private int fieldType;
+    private int fieldOffset;
+    private int fieldLength;
+
+    AdvertisingData() {
+    }
+
+    AdvertisingData(byte[] data) {
+        wrap(data);
+    }
+
+    AdvertisingData wrap(byte[] data) {
+        this.data = data;
+        this.length = data == null ? 0 : data.length;
+        rewind();
+        return this;
+    }
+
+    byte[] array() {
+        return data;
+    }
+
+    void rewind() {
+        next = 0;
+        fieldType = -1;
+        fieldOffset = 0;
+        fieldLength = 0;
+    }
+
+    // advance to the next AD structure, returns false at the end of the record or on a malformed length
+    boolean nextField() {
+        if (next >= length) {
+            return false;
+        }
+
+        int len = data[next] & 0xff;
+        // zero length marks the end of the significant part, the rest is padding
+        if (len == 0 || next + 1 + len > length) {
+            next = length;
+            return false;
+        }
+
+        fieldType = data[next + 1] & 0xff;
+        fieldOffset = next + 2;
+        fieldLength = len - 1;
+        next += len + 1;
+        return true;
+    }
+
+    int fieldType() {
+        return fieldType;
+    }
+
+    // offset of the current field's data (after the type byte) in array()
+    int fieldOffset() {
+        return fieldOffset;
+    }
+
+    int fieldLength() {
+        return fieldLength;
+    }
+
+    // position the cursor on the first field of the given type
+    boolean findField(int type) {
+        rewind();
+        while (nextField()) {
+            if (fieldType == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // advertised TX power in dBm or TX_POWER_NOT_PRESENT
+    int getTxPowerLevel() {
+        if (findField(TX_POWER_LEVEL) && fieldLength > 0) {
+            return data[fieldOffset];
+        }
+        return TX_POWER_NOT_PRESENT;
+    }
+
+    /**
+     * Position the cursor on the manufacturer data for the company.
+     * On success fieldOffset() points at the data following the 2 byte company identifier.
+     */
+    boolean findManufacturerData(int manufacturerId) {
+        rewind();
+        while (nextField()) {
+            if (fieldType == MANUFACTURER_DATA && fieldLength >= 2 && uint16(fieldOffset) == manufacturerId) {
+                fieldOffset += 2;
+                fieldLength -= 2;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Position the cursor on the service data for the service.
+     * On success fieldOffset() points at the data following the service UUID.
+     */
+    boolean findServiceData(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        boolean shortUuid = isShortUuid(msb, lsb);
+        int uuid32 = (int) (msb >>> 32);
+
+        rewind();
+        while (nextField()) {
+            int uuidLength;
+            boolean match;
+            if (fieldType == SERVICE_DATA_UUID16 && shortUuid && fieldLength >= 2) {
+                uuidLength = 2;
+                match = uint16(fieldOffset) == uuid32;
+            } else if (fieldType == SERVICE_DATA_UUID32 && shortUuid && fieldLength >= 4) {
+                uuidLength = 4;
+                match = int32(fieldOffset) == uuid32;
+            } else if (fieldType == SERVICE_DATA_UUID128 && fieldLength >= 16) {
+                uuidLength = 16;
+                match = uuid128Equals(fieldOffset, msb, lsb);
+            } else {
+                continue;
+            }
+            if (match) {
+                fieldOffset += uuidLength;
+                fieldLength -= uuidLength;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // true if the service UUID is listed in any of the 16, 32 or 128 bit service UUID fields
+    boolean hasServiceUuid(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        boolean shortUuid = isShortUuid(msb, lsb);
+        int uuid32 = (int) (msb >>> 32);
+
+        rewind();
+        while (nextField()) {
+            int end = fieldOffset + fieldLength;
+            switch (fieldType) {
+                case INCOMPLETE_UUID16:
+                case COMPLETE_UUID16:
+                    if (shortUuid) {
+                        for (int i = fieldOffset; i + 2 <= end; i += 2) {
+                            if (uint16(i) == uuid32) {
+                                return true;
+                            }
+                        }
+                    }
+                    break;
+                case INCOMPLETE_UUID32:
+                case COMPLETE_UUID32:
+                    if (shortUuid) {
+                        for (int i = fieldOffset; i + 4 <= end; i += 4) {
+                            if (int32(i) == uuid32) {
+                                return true;
+                            }
+                        }
+                    }
+                    break;
+                case INCOMPLETE_UUID128:
+                case COMPLETE_UUID128:
+                    for (int i = fieldOffset; i + 16 <= end; i += 16) {
+                        if (uuid128Equals(i, msb, lsb)) {
+                            return true;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return false;
+    }
+
+    // complete local name, falling back to the shortened name, or null. Allocates.
+    String getLocalName() {
+        if (findField(COMPLETE_LOCAL_NAME) || findField(SHORT_LOCAL_NAME)) {
+            return new String(data, fieldOffset, fieldLength, UTF8);
+        }
+        return null;
+    }
+
+    // true if the complete or shortened local name starts with prefix, compared in place for ASCII prefixes
+    boolean localNameStartsWith(String prefix) {
+        return localNameMatches(prefix, false);
+    }
+
+    boolean localNameEquals(String name) {
+        return localNameMatches(name, true);
+    }
+
+    private boolean localNameMatches(String value, boolean exact) {
+        if (!findField(COMPLETE_LOCAL_NAME) && !findField(SHORT_LOCAL_NAME)) {
+            return false;
+        }
+        int valueLength = value.length();
+        if (valueLength > fieldLength || (exact && valueLength != fieldLength)) {
+            return false;
+        }
+        for (int i = 0; i < valueLength; i++) {
+            char c = value.charAt(i);
+            if (c > 0x7f) {
+                // not ASCII, fall back to decoding the name
+                String name = getLocalName();
+                return name != null && (exact ? name.equals(value) : name.startsWith(value));
+            }
+            if (data[fieldOffset + i] != (byte) c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // compare the masked bytes of the current field with data, a null mask compares every byte
+    boolean fieldMatches(byte[] expected, byte[] mask) {
+        if (expected == null) {
+            return true;
+        }
+        if (expected.length > fieldLength) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            int m = mask == null || i >= mask.length ? 0xff : mask[i];
+            if ((data[fieldOffset + i] & m) != (expected[i] & m)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isShortUuid(long msb, long lsb) {
+        return lsb == BASE_UUID_LSB && (msb & 0xFFFFFFFFL) == BASE_UUID_MSB;
+    }
+
+    // AD fields are little endian
+    private int uint16(int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8);
+    }
+
+    private int int32(int offset) {
+        return uint16(offset) | (uint16(offset + 2) << 16);
+    }
+
+    private long int64(int offset) {
+        return (int32(offset) & 0xFFFFFFFFL) | ((long) int32(offset + 4) << 32);
+    }
+
+    private boolean uuid128Equals(int offset, long msb, long lsb) {
+        return int64(offset) == lsb && int64(offset + 8) == msb;
+    }
+}
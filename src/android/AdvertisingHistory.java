@@ -0,0 +1,69 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Fixed size ring buffer of the most recent advertisements seen for a peripheral.
+ *
+ * Slots are allocated once. Adding an advertisement stores the scan record reference
+ * handed to us by the stack (no copy) and overwrites the oldest entry when full.
+ * Timestamps are SystemClock.elapsedRealtime(), toJSON reports them as wall clock time.
+ */
+class AdvertisingHistory {
+
+    private final byte[][] records;
+    private final int[] rssi;
+    private final long[] timestamps;
+
+    private int head; // next slot to write
+    private int size;
+
+    AdvertisingHistory(int capacity) {
+        records = new byte[capacity][];
+        rssi = new int[capacity];
+        timestamps = new long[capacity];
+    }
+
+    synchronized void add(byte[] record, int rssi, long timestamp) {
+        records[head] = record;
+        this.rssi[head] = rssi;
+        timestamps[head] = timestamp;
+        head = (head + 1) % records.length;
+        if (size < records.length) {
+            size++;
+        }
+    }
+
+    // [{ advertising, rssi, timestamp }], oldest first, timestamp in ms since epoch
+    synchronized JSONArray toJSON() throws JSONException {
+        long offset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        JSONArray json = new JSONArray();
+        for (int i = 0; i < size; i++) {
+            int slot = (head - size + i + records.length) % records.length;
+            JSONObject entry = new JSONObject();
+            entry.put("advertising", Peripheral.byteArrayToJSON(records[slot]));
+            entry.put("rssi", rssi[slot]);
+            entry.put("timestamp", timestamps[slot] + offset);
+            json.put(entry);
+        }
+        return json;
+    }
+}
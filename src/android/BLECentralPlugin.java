@@ -19,6 +19,7 @@ import android.annotation.TargetApi;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
@@ -31,8 +32,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
-import android.os.ParcelUuid;
 import android.provider.Settings;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaArgs;
@@ -41,27 +43,53 @@ import org.apache.cordova.LOG;
 import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.LeScanCallback {
 
     // actions
     private static final String SCAN = "scan";
     private static final String START_SCAN = "startScan";
+    private static final String START_SCAN_WITH_OPTIONS = "startScanWithOptions";
     private static final String STOP_SCAN = "stopScan";
+    private static final String START_SCAN_SESSION = "startScanSession";
+    private static final String STOP_SCAN_SESSION = "stopScanSession";
+    private static final String START_PROXIMITY = "startProximity";
+    private static final String STOP_PROXIMITY = "stopProximity";
 
     private static final String LIST = "list";
+    private static final String GET_ADVERTISING_HISTORY = "getAdvertisingHistory";
 
     private static final String CONNECT = "connect";
+    private static final String CONNECT_WITH_OPTIONS = "connectWithOptions";
+    private static final String CONFIGURE_CONNECTIONS = "configureConnections";
     private static final String DISCONNECT = "disconnect";
+    private static final String GET_GATT_CACHE = "getGattCache";
+    private static final String CLEAR_GATT_CACHE = "clearGattCache";
 
     private static final String READ = "read";
+    private static final String READ_CACHED = "readCached";
+    private static final String GET_CACHE_STATS = "getCacheStats";
     private static final String WRITE = "write";
     private static final String WRITE_WITHOUT_RESPONSE = "writeWithoutResponse";
+    private static final String WRITE_LARGE = "writeLarge";
+    private static final String REQUEST_MTU = "requestMtu";
+    private static final String REQUEST_CONNECTION_PRIORITY = "requestConnectionPriority";
+    private static final String SET_PREFERRED_PHY = "setPreferredPhy";
+    private static final String SET_THROUGHPUT_POLICY = "setThroughputPolicy";
+    private static final String SET_WRITE_WITHOUT_RESPONSE_WINDOW = "setWriteWithoutResponseWindow";
 
     private static final String NOTIFY = "startNotification"; // register for characteristic notification
+    private static final String STOP_NOTIFICATION = "stopNotification";
+    private static final String BATCH = "batch";
+    private static final String GET_NOTIFICATION_STATS = "getNotificationStats";
+    private static final String SET_COMMAND_TIMEOUTS = "setCommandTimeouts";
+    private static final String CANCEL_COMMANDS = "cancelCommands";
+    private static final String GET_QUEUE_STATS = "getQueueStats";
 
     private static final String IS_ENABLED = "isEnabled";
     private static final String IS_CONNECTED  = "isConnected";
@@ -70,8 +98,6 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
     private static final String SETTINGS = "showBluetoothSettings";
     private static final String ENABLE = "enable";
     // callbacks
-    CallbackContext discoverCallback;
-    int discoverSeconds;
     private CallbackContext enableBluetoothCallback;
 
     private static final String TAG = "BLEPlugin";
@@ -84,9 +110,71 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
     BluetoothAdapter bluetoothAdapter;
 
     // key is the MAC Address
-    Map<String, Peripheral> peripherals = new LinkedHashMap<String, Peripheral>();
+    PeripheralRegistry peripherals = new PeripheralRegistry(new PeripheralRegistry.EvictionListener() {
+        @Override
+        public void onPeripheralEvicted(Peripheral peripheral) {
+            onPeripheralLost(peripheral.getAddress());
+        }
+    });
+
+    // scan subscribers sharing the hardware scan
+    final ScanSessionManager scanSessions = new ScanSessionManager();
+    // sessions waiting for the user to grant permission
+    private final List<ScanSession> pendingScanSessions = new ArrayList<ScanSession>();
+    // union of the session settings and the signature of the running hardware scan
+    private ScanOptions hardwareScanOptions = new ScanOptions();
+    private String hardwareScanSignature = null;
+
+    private final Handler scanHandler = new Handler(Looper.getMainLooper());
+    private final Runnable evictionTask = new Runnable() {
+        @Override
+        public void run() {
+            long ttl = peripherals.getTtl();
+            if (isScanning && ttl > 0) {
+                peripherals.evictStale();
+                scanHandler.postDelayed(this, Math.max(ttl / 4, 250));
+            }
+        }
+    };
+    // sessions that emulate their callbackType, see ScanSession.expireMatches
+    private final Runnable matchLostTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!isScanning) {
+                return;
+            }
+            boolean emulating = false;
+            long now = SystemClock.elapsedRealtime();
+            for (ScanSession session : scanSessions.sessions()) {
+                emulating |= session.expireMatches(now);
+            }
+            if (emulating) {
+                scanHandler.postDelayed(this, ScanSession.EMULATED_LOST_TIMEOUT / 4);
+            }
+        }
+    };
+    private final Runnable rescanTask = new Runnable() {
+        @Override
+        public void run() {
+            LOG.d(TAG, "Rescanning");
+            if (isScanning) {
+                BLECentralPlugin.this.bluetoothAdapter.stopLeScan(BLECentralPlugin.this);
+                BLECentralPlugin.this.bluetoothAdapter.startLeScan(BLECentralPlugin.this);
+                scanHandler.postDelayed(this, RESCAN_INTERVAL);
+            }
+        }
+    };
 
-    UUID[] scanFilterUuids = null;
+    // limits the number of connection attempts in flight
+    private final ConnectionScheduler connectionScheduler = new ConnectionScheduler();
+
+    // key is the MAC Address
+    private final Map<String, ProximityTracker> proximityTrackers = new ConcurrentHashMap<String, ProximityTracker>();
+    private final Handler proximityHandler = new Handler(Looper.getMainLooper());
+
+    // reused for every scan record, scan callbacks are delivered serially
+    private final AdvertisingData advertisingData = new AdvertisingData();
+    private boolean[] sessionMatches = new boolean[4];
 
     private static final String BLUETOOTH_PERMISSION = Manifest.permission.BLUETOOTH_ADMIN;
     private static final String BLUETOOTH_PERMISSION2 = Manifest.permission.ACCESS_COARSE_LOCATION;
@@ -131,17 +219,18 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
             if(r == PackageManager.PERMISSION_DENIED)
             {
                 LOG.i(TAG, "Permission Denied");
-                if (discoverCallback != null) {
-                    PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, "permission denied");
-                    discoverCallback.sendPluginResult(pluginResult);
-                    discoverCallback = null;
+                for (ScanSession session : pendingScanSessions) {
+                    session.fail("permission denied");
                 }
+                pendingScanSessions.clear();
                 return;
             }
         }
         LOG.i(TAG, "Permission Granted");
-        if (discoverCallback != null) {
-            findLowEnergyDevices();
+        List<ScanSession> granted = new ArrayList<ScanSession>(pendingScanSessions);
+        pendingScanSessions.clear();
+        for (ScanSession session : granted) {
+            startScanSession(session, session.getScanSeconds());
         }
     }
 
@@ -162,68 +251,278 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
             UUID[] serviceUUIDs = parseServiceUUIDList(args.getJSONArray(0));
             int scanSeconds = args.getInt(1);
-            findLowEnergyDevices(callbackContext, serviceUUIDs, scanSeconds);
+            findLowEnergyDevices(callbackContext, ScanSessionManager.DEFAULT_SESSION, serviceUUIDs, scanSeconds, new ScanOptions());
 
         } else if (action.equals(START_SCAN)) {
 
             UUID[] serviceUUIDs = parseServiceUUIDList(args.getJSONArray(0));
-            findLowEnergyDevices(callbackContext, serviceUUIDs, -1);
+            findLowEnergyDevices(callbackContext, ScanSessionManager.DEFAULT_SESSION, serviceUUIDs, -1, new ScanOptions());
+
+        } else if (action.equals(START_SCAN_WITH_OPTIONS)) {
+
+            UUID[] serviceUUIDs = parseServiceUUIDList(args.getJSONArray(0));
+            ScanOptions options = ScanOptions.fromJSON(args.optJSONObject(1));
+            findLowEnergyDevices(callbackContext, ScanSessionManager.DEFAULT_SESSION, serviceUUIDs, -1, options);
+
+        } else if (action.equals(START_SCAN_SESSION)) {
+
+            String sessionId = args.getString(0);
+            UUID[] serviceUUIDs = parseServiceUUIDList(args.getJSONArray(1));
+            ScanOptions options = ScanOptions.fromJSON(args.optJSONObject(2));
+            findLowEnergyDevices(callbackContext, sessionId, serviceUUIDs, -1, options);
+
+        } else if (action.equals(STOP_SCAN_SESSION)) {
+
+            stopScanSession(args.getString(0));
+            callbackContext.success();
 
         } else {
             if (action.equals(STOP_SCAN)) {
-                isScanning = false;
-                if (android.os.Build.VERSION.SDK_INT < 21) {
-                    bluetoothAdapter.stopLeScan(this);
-                } else {
-                    bluetoothLeScanner().stopScan(this.scanCallback());
-                }
+
+                stopScanSession(ScanSessionManager.DEFAULT_SESSION);
                 callbackContext.success();
 
             } else if (action.equals(LIST)) {
 
                 listKnownDevices(callbackContext);
 
+            } else if (action.equals(GET_ADVERTISING_HISTORY)) {
+
+                String macAddress = args.getString(0);
+                Peripheral peripheral = peripherals.get(macAddress);
+                if (peripheral != null) {
+                    callbackContext.success(peripheral.getAdvertisingHistory());
+                } else {
+                    callbackContext.error("Peripheral " + macAddress + " not found.");
+                }
+
             } else if (action.equals(CONNECT)) {
 
                 String macAddress = args.getString(0);
-                connect(callbackContext, macAddress);
+                connect(callbackContext, macAddress, new ConnectOptions());
+
+            } else if (action.equals(CONNECT_WITH_OPTIONS)) {
+
+                String macAddress = args.getString(0);
+                ConnectOptions options = ConnectOptions.fromJSON(args.optJSONObject(1));
+                connect(callbackContext, macAddress, options);
+
+            } else if (action.equals(CONFIGURE_CONNECTIONS)) {
+
+                JSONObject options = args.getJSONObject(0);
+                connectionScheduler.configure(options.optInt("maxConcurrent", ConnectionScheduler.DEFAULT_MAX_CONCURRENT));
+                callbackContext.success();
 
             } else if (action.equals(DISCONNECT)) {
 
                 String macAddress = args.getString(0);
                 disconnect(callbackContext, macAddress);
 
+            } else if (action.equals(GET_GATT_CACHE)) {
+
+                GattCache.forContext(cordova.getActivity()).list(callbackContext);
+
+            } else if (action.equals(CLEAR_GATT_CACHE)) {
+
+                // a null address clears every device, getGattCache calls run after the change
+                GattCache gattCache = GattCache.forContext(cordova.getActivity());
+                if (args.isNull(0)) {
+                    gattCache.clear();
+                } else {
+                    gattCache.remove(args.getString(0));
+                }
+                callbackContext.success();
+
             } else if (action.equals(READ)) {
 
                 String macAddress = args.getString(0);
-                UUID serviceUUID = uuidFromString(args.getString(1));
-                UUID characteristicUUID = uuidFromString(args.getString(2));
-                read(callbackContext, macAddress, serviceUUID, characteristicUUID);
+                UUID serviceUUID = uuidArg(args, 1);
+                UUID characteristicUUID = uuidArg(args, 2);
+                int handle = handleArg(args);
+                JSONObject options = args.optJSONObject(3);
+                read(callbackContext, macAddress, serviceUUID, characteristicUUID, handle, options);
+
+            } else if (action.equals(READ_CACHED)) {
+
+                String macAddress = args.getString(0);
+                UUID serviceUUID = uuidArg(args, 1);
+                UUID characteristicUUID = uuidArg(args, 2);
+                int handle = handleArg(args);
+                long maxAge = args.getLong(3);
+                JSONObject options = args.optJSONObject(4);
+                Peripheral peripheral = connectedPeripheral(callbackContext, macAddress);
+                if (peripheral != null) {
+                    peripheral.queueReadCached(callbackContext, serviceUUID, characteristicUUID, handle, maxAge, options);
+                }
+
+            } else if (action.equals(GET_CACHE_STATS)) {
+
+                String macAddress = args.getString(0);
+                Peripheral peripheral = peripherals.get(macAddress);
+                if (peripheral != null) {
+                    callbackContext.success(peripheral.getCacheStats());
+                } else {
+                    callbackContext.error("Peripheral " + macAddress + " not found.");
+                }
 
             } else if (action.equals(WRITE)) {
 
                 String macAddress = args.getString(0);
-                UUID serviceUUID = uuidFromString(args.getString(1));
-                UUID characteristicUUID = uuidFromString(args.getString(2));
+                UUID serviceUUID = uuidArg(args, 1);
+                UUID characteristicUUID = uuidArg(args, 2);
+                int handle = handleArg(args);
                 byte[] data = args.getArrayBuffer(3);
                 int type = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
-                write(callbackContext, macAddress, serviceUUID, characteristicUUID, data, type);
+                JSONObject options = args.optJSONObject(4);
+                write(callbackContext, macAddress, serviceUUID, characteristicUUID, handle, data, type, options);
 
             } else if (action.equals(WRITE_WITHOUT_RESPONSE)) {
 
                 String macAddress = args.getString(0);
-                UUID serviceUUID = uuidFromString(args.getString(1));
-                UUID characteristicUUID = uuidFromString(args.getString(2));
+                UUID serviceUUID = uuidArg(args, 1);
+                UUID characteristicUUID = uuidArg(args, 2);
+                int handle = handleArg(args);
                 byte[] data = args.getArrayBuffer(3);
                 int type = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
-                write(callbackContext, macAddress, serviceUUID, characteristicUUID, data, type);
+                JSONObject options = args.optJSONObject(4);
+                write(callbackContext, macAddress, serviceUUID, characteristicUUID, handle, data, type, options);
+
+            } else if (action.equals(WRITE_LARGE)) {
+
+                String macAddress = args.getString(0);
+                UUID serviceUUID = uuidArg(args, 1);
+                UUID characteristicUUID = uuidArg(args, 2);
+                int handle = handleArg(args);
+                byte[] data = args.getArrayBuffer(3);
+                JSONObject options = args.optJSONObject(4);
+                writeLarge(callbackContext, macAddress, serviceUUID, characteristicUUID, handle, data, options);
+
+            } else if (action.equals(REQUEST_MTU)) {
+
+                String macAddress = args.getString(0);
+                int mtu = args.getInt(1);
+                requestMtu(callbackContext, macAddress, mtu);
+
+            } else if (action.equals(REQUEST_CONNECTION_PRIORITY)) {
+
+                String macAddress = args.getString(0);
+                int priority = parseConnectionPriority(args.getString(1));
+                Peripheral peripheral = connectedPeripheral(callbackContext, macAddress);
+                if (peripheral != null) {
+                    peripheral.queueRequestConnectionPriority(callbackContext, priority);
+                }
+
+            } else if (action.equals(SET_PREFERRED_PHY)) {
+
+                String macAddress = args.getString(0);
+                int phyMask = parsePhyMask(args.get(1));
+                int phyOptions = parsePhyOptions(args.isNull(2) ? "noPreferred" : args.getString(2));
+                Peripheral peripheral = connectedPeripheral(callbackContext, macAddress);
+                if (peripheral != null) {
+                    peripheral.queueSetPreferredPhy(callbackContext, phyMask, phyOptions);
+                }
+
+            } else if (action.equals(SET_THROUGHPUT_POLICY)) {
+
+                String macAddress = args.getString(0);
+                JSONObject options = args.getJSONObject(1);
+                Peripheral peripheral = peripherals.get(macAddress);
+                if (peripheral != null) {
+                    peripheral.setThroughputPolicy(options);
+                    callbackContext.success();
+                } else {
+                    callbackContext.error("Peripheral " + macAddress + " not found.");
+                }
+
+            } else if (action.equals(SET_WRITE_WITHOUT_RESPONSE_WINDOW)) {
+
+                String macAddress = args.getString(0);
+                int window = args.getInt(1);
+                Peripheral peripheral = peripherals.get(macAddress);
+                if (peripheral != null) {
+                    peripheral.setWriteWithoutResponseWindow(window);
+                    callbackContext.success();
+                } else {
+                    callbackContext.error("Peripheral " + macAddress + " not found.");
+                }
 
             } else if (action.equals(NOTIFY)) {
 
                 String macAddress = args.getString(0);
-                UUID serviceUUID = uuidFromString(args.getString(1));
-                UUID characteristicUUID = uuidFromString(args.getString(2));
-                registerNotifyCallback(callbackContext, macAddress, serviceUUID, characteristicUUID);
+                UUID serviceUUID = uuidArg(args, 1);
+                UUID characteristicUUID = uuidArg(args, 2);
+                int handle = handleArg(args);
+                JSONObject options = args.optJSONObject(3);
+                registerNotifyCallback(callbackContext, macAddress, serviceUUID, characteristicUUID, handle, options);
+
+            } else if (action.equals(STOP_NOTIFICATION)) {
+
+                String macAddress = args.getString(0);
+                UUID serviceUUID = uuidArg(args, 1);
+                UUID characteristicUUID = uuidArg(args, 2);
+                int handle = handleArg(args);
+                Peripheral peripheral = connectedPeripheral(callbackContext, macAddress);
+                if (peripheral != null) {
+                    peripheral.queueRemoveNotifyCallback(callbackContext, serviceUUID, characteristicUUID, handle);
+                }
+
+            } else if (action.equals(GET_NOTIFICATION_STATS)) {
+
+                String macAddress = args.getString(0);
+                Peripheral peripheral = peripherals.get(macAddress);
+                if (peripheral != null) {
+                    callbackContext.success(peripheral.getNotificationStats());
+                } else {
+                    callbackContext.error("Peripheral " + macAddress + " not found.");
+                }
+
+            } else if (action.equals(BATCH)) {
+
+                String macAddress = args.getString(0);
+                JSONArray operations = args.getJSONArray(1);
+                JSONObject options = args.optJSONObject(2);
+                Peripheral peripheral = connectedPeripheral(callbackContext, macAddress);
+                if (peripheral != null) {
+                    Batch batch = Batch.fromJSON(callbackContext, peripheral, operations, options);
+                    if (batch.getCommands().isEmpty()) {
+                        callbackContext.success(new JSONArray());
+                    } else {
+                        peripheral.queueBatch(callbackContext, batch.getCommands());
+                    }
+                }
+
+            } else if (action.equals(SET_COMMAND_TIMEOUTS)) {
+
+                CommandTimeouts.configure(args.getJSONObject(0));
+                callbackContext.success();
+
+            } else if (action.equals(CANCEL_COMMANDS)) {
+
+                String macAddress = args.getString(0);
+                JSONObject filter = args.optJSONObject(1);
+                cancelCommands(callbackContext, macAddress, filter == null ? new JSONObject() : filter);
+
+            } else if (action.equals(GET_QUEUE_STATS)) {
+
+                String macAddress = args.getString(0);
+                Peripheral peripheral = peripherals.get(macAddress);
+                if (peripheral != null) {
+                    callbackContext.success(peripheral.getQueueStats());
+                } else {
+                    callbackContext.error("Peripheral " + macAddress + " not found.");
+                }
+
+            } else if (action.equals(START_PROXIMITY)) {
+
+                String macAddress = args.getString(0);
+                ProximityOptions options = ProximityOptions.fromJSON(args.optJSONObject(1));
+                startProximity(callbackContext, macAddress, options);
+
+            } else if (action.equals(STOP_PROXIMITY)) {
+
+                String macAddress = args.getString(0);
+                stopProximity(macAddress);
+                callbackContext.success();
 
             } else if (action.equals(IS_ENABLED)) {
 
@@ -245,7 +544,9 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
                 String macAddress = args.getString(0);
 
-                if (peripherals.containsKey(macAddress) && peripherals.get(macAddress).isConnected()) {
+                Peripheral peripheral = peripherals.get(macAddress);
+
+                if (peripheral != null && peripheral.isConnected()) {
                     callbackContext.success();
                 } else {
                     callbackContext.error("Not connected.");
@@ -284,11 +585,11 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         return serviceUUIDs.toArray(new UUID[jsonArray.length()]);
     }
 
-    private void connect(CallbackContext callbackContext, String macAddress) {
+    private void connect(CallbackContext callbackContext, String macAddress, ConnectOptions options) {
 
         Peripheral peripheral = peripherals.get(macAddress);
         if (peripheral != null) {
-            peripheral.connect(callbackContext, cordova.getActivity());
+            connectionScheduler.connect(peripheral, callbackContext, options, cordova.getActivity());
         } else {
             callbackContext.error("Peripheral " + macAddress + " not found.");
         }
@@ -297,6 +598,8 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
     private void disconnect(CallbackContext callbackContext, String macAddress) {
 
+        connectionScheduler.cancel(macAddress);
+
         Peripheral peripheral = peripherals.get(macAddress);
         if (peripheral != null) {
             peripheral.disconnect();
@@ -305,7 +608,43 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
     }
 
-    private void read(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID) {
+    private void startProximity(CallbackContext callbackContext, String macAddress, ProximityOptions options) {
+
+        Peripheral peripheral = peripherals.get(macAddress);
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
+            return;
+        }
+
+        // replaces a running tracker, e.g. to change the filter
+        stopProximity(macAddress);
+
+        ProximityTracker tracker = new ProximityTracker(macAddress, callbackContext, options, proximityHandler);
+        proximityTrackers.put(macAddress, tracker);
+        peripheral.setProximityTracker(tracker);
+
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+
+        tracker.start();
+    }
+
+    private void stopProximity(String macAddress) {
+
+        ProximityTracker tracker = proximityTrackers.remove(macAddress);
+        if (tracker != null) {
+            tracker.stop();
+        }
+
+        Peripheral peripheral = peripherals.get(macAddress);
+        if (peripheral != null) {
+            peripheral.setProximityTracker(null);
+        }
+
+    }
+
+    private void read(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID, int handle, JSONObject options) {
 
         Peripheral peripheral = peripherals.get(macAddress);
 
@@ -320,12 +659,12 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         }
 
         //peripheral.readCharacteristic(callbackContext, serviceUUID, characteristicUUID);
-        peripheral.queueRead(callbackContext, serviceUUID, characteristicUUID);
+        peripheral.queueRead(callbackContext, serviceUUID, characteristicUUID, handle, options);
 
     }
 
     private void write(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID,
-                       byte[] data, int writeType) {
+                       int handle, byte[] data, int writeType, JSONObject options) {
 
         Peripheral peripheral = peripherals.get(macAddress);
 
@@ -340,17 +679,138 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         }
 
         //peripheral.writeCharacteristic(callbackContext, serviceUUID, characteristicUUID, data, writeType);
-        peripheral.queueWrite(callbackContext, serviceUUID, characteristicUUID, data, writeType);
+        peripheral.queueWrite(callbackContext, serviceUUID, characteristicUUID, handle, data, writeType, options);
+
+    }
+
+    private void writeLarge(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID,
+                            int handle, byte[] data, JSONObject options) {
+
+        Peripheral peripheral = peripherals.get(macAddress);
+
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
+            return;
+        }
+
+        if (!peripheral.isConnected()) {
+            callbackContext.error("Peripheral " + macAddress + " is not connected.");
+            return;
+        }
+
+        peripheral.queueWriteLarge(callbackContext, serviceUUID, characteristicUUID, handle, data, options);
 
     }
 
-    private void registerNotifyCallback(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID) {
+    // filter is {service, characteristic, priority}, a missing key matches anything
+    private void cancelCommands(CallbackContext callbackContext, String macAddress, JSONObject filter) throws JSONException {
+
+        Peripheral peripheral = peripherals.get(macAddress);
+
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
+            return;
+        }
+
+        UUID serviceUUID = filter.isNull("service") ? null : uuidFromString(filter.getString("service"));
+        UUID characteristicUUID = filter.isNull("characteristic") ? null : uuidFromString(filter.getString("characteristic"));
+        int lane = -1;
+        if (!filter.isNull("priority")) {
+            lane = CommandQueue.laneForName(filter.getString("priority"));
+            if (lane < 0) {
+                throw new JSONException("Invalid priority " + filter.getString("priority"));
+            }
+        }
+
+        callbackContext.success(peripheral.cancelCommands(serviceUUID, characteristicUUID, lane));
+
+    }
+
+    // the peripheral, or null after reporting that it is unknown or not connected
+    private Peripheral connectedPeripheral(CallbackContext callbackContext, String macAddress) {
+
+        Peripheral peripheral = peripherals.get(macAddress);
+
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
+            return null;
+        }
+
+        if (!peripheral.isConnected()) {
+            callbackContext.error("Peripheral " + macAddress + " is not connected.");
+            return null;
+        }
+
+        return peripheral;
+
+    }
+
+    private int parseConnectionPriority(String priority) throws JSONException {
+        if (priority.equals("balanced")) {
+            return BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        } else if (priority.equals("high")) {
+            return BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        } else if (priority.equals("lowPower")) {
+            return BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        }
+        throw new JSONException("Invalid connection priority " + priority);
+    }
+
+    // "1m", "2m", "coded" or an array of them
+    private int parsePhyMask(Object phy) throws JSONException {
+        if (phy instanceof JSONArray) {
+            JSONArray array = (JSONArray) phy;
+            int mask = 0;
+            for (int i = 0; i < array.length(); i++) {
+                mask |= parsePhyMask(array.getString(i));
+            }
+            return mask;
+        } else if ("1m".equals(phy)) {
+            return BluetoothDevice.PHY_LE_1M_MASK;
+        } else if ("2m".equals(phy)) {
+            return BluetoothDevice.PHY_LE_2M_MASK;
+        } else if ("coded".equals(phy)) {
+            return BluetoothDevice.PHY_LE_CODED_MASK;
+        }
+        throw new JSONException("Invalid PHY " + phy);
+    }
+
+    private int parsePhyOptions(String options) throws JSONException {
+        if (options.equals("noPreferred")) {
+            return BluetoothDevice.PHY_OPTION_NO_PREFERRED;
+        } else if (options.equals("s2")) {
+            return BluetoothDevice.PHY_OPTION_S2;
+        } else if (options.equals("s8")) {
+            return BluetoothDevice.PHY_OPTION_S8;
+        }
+        throw new JSONException("Invalid PHY option " + options);
+    }
+
+    private void requestMtu(CallbackContext callbackContext, String macAddress, int mtu) {
+
+        Peripheral peripheral = peripherals.get(macAddress);
+
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
+            return;
+        }
+
+        if (!peripheral.isConnected()) {
+            callbackContext.error("Peripheral " + macAddress + " is not connected.");
+            return;
+        }
+
+        peripheral.queueRequestMtu(callbackContext, mtu);
+
+    }
+
+    private void registerNotifyCallback(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID, int handle, JSONObject options) throws JSONException {
 
         Peripheral peripheral = peripherals.get(macAddress);
         if (peripheral != null) {
 
             //peripheral.setOnDataCallback(serviceUUID, characteristicUUID, callbackContext);
-            peripheral.queueRegisterNotifyCallback(callbackContext, serviceUUID, characteristicUUID);
+            peripheral.queueRegisterNotifyCallback(callbackContext, serviceUUID, characteristicUUID, handle, options);
 
         } else {
 
@@ -369,34 +829,35 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
                 @Override
                 public void onScanResult ( int callbackType, ScanResult result){
                     BluetoothDevice device = result.getDevice();
-                    if (device != null) {
+                    if (device != null && callbackType == ScanSettings.CALLBACK_TYPE_MATCH_LOST) {
+                        onPeripheralLost(device.getAddress());
+                    } else if (device != null) {
                         int rssi = result.getRssi();
                         ScanRecord scanRecord = result.getScanRecord();
                         assert scanRecord != null;
                         byte[] rawScanRecord = scanRecord.getBytes();
 
-                        Peripheral peripheral = new Peripheral(bluetoothManager, bluetoothAdapter, device, rssi, rawScanRecord);
-                        peripherals.put(device.getAddress(), peripheral);
-
-                        if (discoverCallback != null) {
-                            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, peripheral.asJSONObject());
-                            pluginResult.setKeepCallback(true);
-                            discoverCallback.sendPluginResult(pluginResult);
-                        }
+                        onAdvertisement(device, rssi, rawScanRecord);
                     }
                 }
                 @Override
                 public void onBatchScanResults (List < ScanResult > results) {
                     for (ScanResult result : results) {
-                        onScanResult(2, result);
+                        onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+                    }
+                    // one bridge message per controller batch
+                    for (ScanSession session : scanSessions.sessions()) {
+                        session.flush();
                     }
                 }
 
                 @Override
                 public void onScanFailed ( int errorCode){
-                    PluginResult result = new PluginResult(PluginResult.Status.ERROR, errorCode);
-                    result.setKeepCallback(false);
-                    discoverCallback.sendPluginResult(result);
+                    isScanning = false;
+                    hardwareScanSignature = null;
+                    for (ScanSession session : scanSessions.removeAll()) {
+                        session.fail(errorCode);
+                    }
                 }
             } ;
         }
@@ -404,38 +865,54 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
     }
 
     @TargetApi(21)
-    private List<ScanFilter> scanFilters() {
+    private List<ScanFilter> scanFilters(List<ScanFilterSpec> specs) {
         List<ScanFilter> list = new ArrayList<ScanFilter>();
-        for (UUID uuid : this.scanFilterUuids) {
-            ParcelUuid parcelUuid = new ParcelUuid(uuid);
-            ScanFilter filter = new ScanFilter.Builder().setServiceUuid(parcelUuid).build();
-            list.add(filter);    
+        for (ScanFilterSpec spec : specs) {
+            list.add(spec.toScanFilter());
         }
-        
         return list;
-    } 
-
-    private ScanSettings _scanSettings = null;
-
-    @TargetApi(23)
-    private ScanSettings scanSettings() {
-        if (_scanSettings == null) {
-            if (android.os.Build.VERSION.SDK_INT >= 23) {
-                _scanSettings = new ScanSettings.Builder()
-                        .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                        .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
-                        .setReportDelay(0)
-                        .setNumOfMatches(ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT)
-                        .build();
-            }
-            else {
-                _scanSettings = new ScanSettings.Builder()
-                        .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                        .setReportDelay(0)
-                        .build();
+    }
+
+    // build the settings for the hardware scan, options the platform doesn't support are skipped
+    @TargetApi(26)
+    private ScanSettings scanSettings(ScanOptions options) {
+        ScanSettings.Builder builder = new ScanSettings.Builder()
+                .setScanMode(options.scanMode)
+                .setReportDelay(reportDelay(options));
+
+        if (android.os.Build.VERSION.SDK_INT >= 23) {
+            builder.setMatchMode(options.matchMode)
+                    .setNumOfMatches(options.numOfMatches)
+                    .setCallbackType(options.callbackType);
+        }
+
+        if (android.os.Build.VERSION.SDK_INT >= 26) {
+            if (!options.legacy && !bluetoothAdapter.isLeExtendedAdvertisingSupported()) {
+                LOG.w(TAG, "Extended advertising is not supported, scanning legacy advertisements only");
+                builder.setLegacy(true);
+            } else {
+                builder.setLegacy(options.legacy);
             }
+            builder.setPhy(options.phy);
         }
-        return _scanSettings;
+
+        return builder.build();
+    }
+
+    // report delay handed to the controller, 0 delivers results immediately
+    private long reportDelay(ScanOptions options) {
+        if (android.os.Build.VERSION.SDK_INT < 21 || !bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            return 0;
+        }
+        if (options.reportDelay >= 0) {
+            return options.reportDelay;
+        }
+        return options.batchInterval;
+    }
+
+    // let the controller batch results when it can, otherwise ScanBatcher buffers in software
+    private boolean useHardwareBatching(ScanOptions options) {
+        return reportDelay(options) > 0;
     }
 
     private BluetoothLeScanner _bluetoothLeScanner = null;
@@ -448,83 +925,143 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         return _bluetoothLeScanner;
     }
     
-    private void findLowEnergyDevices(CallbackContext callbackContext, final UUID[] serviceUUIDs, int scanSeconds) {
+    private void findLowEnergyDevices(CallbackContext callbackContext, String sessionId, UUID[] serviceUUIDs, int scanSeconds, ScanOptions options) {
 
-        // TODO skip if currently scanning
-
-        discoverCallback = callbackContext;
-        discoverSeconds = scanSeconds;
-        scanFilterUuids = serviceUUIDs;
+        ScanSession session = new ScanSession(sessionId, callbackContext, serviceUUIDs, scanSeconds, options);
 
         if(hasPermission()) {
             LOG.d(TAG, "has permission");
-            findLowEnergyDevices();
+            startScanSession(session, scanSeconds);
         }
         else {
+            pendingScanSessions.add(session);
             getPermission(0);
         }
     }
 
-    private void findLowEnergyDevices() {
+    private void startScanSession(final ScanSession session, int scanSeconds) {
 
-        // clear non-connected cached peripherals
-        for(Iterator<Map.Entry<String, Peripheral>> iterator = peripherals.entrySet().iterator(); iterator.hasNext(); ) {
-            Map.Entry<String, Peripheral> entry = iterator.next();
-            if(!entry.getValue().isConnected()) {
-                iterator.remove();
-            }
+        ScanSession previous = scanSessions.put(session);
+        if (previous != null) {
+            previous.close();
         }
-        
-        // the Android 4.3 code has a bug parsing UUIDs.  This code gets around that by
-        // asking android for everything, and then filtering the results after the fact
-        // instead of by providing Android with the UUID to filter
-        if (android.os.Build.VERSION.SDK_INT < 21) {
-            bluetoothAdapter.startLeScan(this);
 
-            if (discoverSeconds > 0) {
-                Handler handler = new Handler();
-                handler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        isScanning = false;
-                        LOG.d(TAG, "Stopping Scan");
-                        BLECentralPlugin.this.bluetoothAdapter.stopLeScan(BLECentralPlugin.this);
-                    }
-                }, discoverSeconds * 1000);
-            }
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        session.getCallbackContext().sendPluginResult(result);
 
-            isScanning = true;
+        updateHardwareScan();
 
-            final Handler rescanHandler = new Handler();
-            rescanHandler.postDelayed(new Runnable() {
+        if (scanSeconds > 0) {
+            scanHandler.postDelayed(new Runnable() {
                 @Override
                 public void run() {
-                    LOG.d(TAG, "Rescanning");
-                    if (isScanning) {
-                        BLECentralPlugin.this.bluetoothAdapter.stopLeScan(BLECentralPlugin.this);
-                        BLECentralPlugin.this.bluetoothAdapter.startLeScan(BLECentralPlugin.this);
-                        rescanHandler.postDelayed(this, RESCAN_INTERVAL);
+                    // unless the session was replaced or stopped in the meantime
+                    if (scanSessions.remove(session)) {
+                        LOG.d(TAG, "Stopping Scan");
+                        session.close();
+                        updateHardwareScan();
                     }
                 }
-            }, RESCAN_INTERVAL);    
-        }        
+            }, scanSeconds * 1000);
+        }
+    }
+
+    private void stopScanSession(String sessionId) {
+        ScanSession session = scanSessions.remove(sessionId);
+        if (session != null) {
+            session.close();
+        }
+        updateHardwareScan();
+    }
+
+    // start, restart or stop the hardware scan so it covers the union of all sessions
+    private void updateHardwareScan() {
+
+        if (scanSessions.isEmpty()) {
+            stopHardwareScan();
+            return;
+        }
+
+        ScanOptions options = scanSessions.unionOptions();
+        List<ScanFilterSpec> filters = scanSessions.unionFilters();
+        String signature = ScanSessionManager.signature(filters, options);
+
+        // callbackType needs Android 6, older scans report all matches
+        int callbackType = android.os.Build.VERSION.SDK_INT >= 23 ? options.callbackType : ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+        for (ScanSession session : scanSessions.sessions()) {
+            session.setScanCallbackType(callbackType);
+        }
+
+        // the Android 4.3 scan is unfiltered, so it never needs a restart
+        if (isScanning && (android.os.Build.VERSION.SDK_INT < 21 || signature.equals(hardwareScanSignature))) {
+            configureRegistry(options);
+            return;
+        }
+
+        if (isScanning) {
+            LOG.d(TAG, "Scan sessions changed, restarting scan");
+            stopHardwareScan();
+        } else {
+            // clear non-connected cached peripherals
+            peripherals.removeDisconnected();
+        }
+
+        hardwareScanOptions = options;
+        hardwareScanSignature = signature;
+
+        // the Android 4.3 code has a bug parsing UUIDs.  This code gets around that by
+        // asking android for everything, and then filtering the results after the fact
+        // instead of by providing Android with the UUID to filter
+        if (android.os.Build.VERSION.SDK_INT < 21) {
+            bluetoothAdapter.startLeScan(this);
+            scanHandler.postDelayed(rescanTask, RESCAN_INTERVAL);
+        }
         else {
-            bluetoothLeScanner().startScan(this.scanFilters(), this.scanSettings(), scanCallback());
+            bluetoothLeScanner().startScan(this.scanFilters(filters), this.scanSettings(options), scanCallback());
         }
+        isScanning = true;
+        configureRegistry(options);
+    }
 
+    // the shortest deviceTimeout of all sessions drives eviction
+    private void configureRegistry(ScanOptions options) {
+        peripherals.configure(options.maxDevices, options.deviceTimeout);
+        scanHandler.removeCallbacks(evictionTask);
+        if (options.deviceTimeout > 0) {
+            scanHandler.postDelayed(evictionTask, options.deviceTimeout);
+        }
+        scanHandler.removeCallbacks(matchLostTask);
+        scanHandler.postDelayed(matchLostTask, ScanSession.EMULATED_LOST_TIMEOUT / 4);
+    }
 
-        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
-        result.setKeepCallback(true);
-        discoverCallback.sendPluginResult(result);
+    private void stopHardwareScan() {
+        if (!isScanning) {
+            return;
+        }
+
+        isScanning = false;
+        hardwareScanSignature = null;
+        scanHandler.removeCallbacks(evictionTask);
+        scanHandler.removeCallbacks(matchLostTask);
+        scanHandler.removeCallbacks(rescanTask);
+
+        if (android.os.Build.VERSION.SDK_INT < 21) {
+            bluetoothAdapter.stopLeScan(this);
+        } else {
+            // deliver results the controller is still holding
+            if (useHardwareBatching(hardwareScanOptions)) {
+                bluetoothLeScanner().flushPendingScanResults(this.scanCallback());
+            }
+            bluetoothLeScanner().stopScan(this.scanCallback());
+        }
     }
 
     private void listKnownDevices(CallbackContext callbackContext) {
 
         JSONArray json = new JSONArray();
 
-        // do we care about consistent order? will peripherals.values() be in order?
-        for (Map.Entry<String, Peripheral> entry : peripherals.entrySet()) {
-            Peripheral peripheral = entry.getValue();
+        for (Peripheral peripheral : peripherals.values()) {
             json.put(peripheral.asJSONObject());
         }
 
@@ -533,82 +1070,64 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
     }
 
 
-    static List<UUID> parseUuids(byte[] adv_data) {
-        List<UUID> uuids = new ArrayList<UUID>();
-
-        int offset = 0;
-        while (offset < (adv_data.length - 2)) {
-            int len = adv_data[offset++];
-            if (len == 0) break;
-            if (offset + len > adv_data.length) break;
-
-            int type = adv_data[offset++];
-            len--; //subtract one byte for the type
-            switch (type) {
-                case 0x02: // Partial list of 16-bit UUIDs
-                case 0x03: // Complete list of 16-bit UUIDs
-                    while (len > 1) {
-                        int uuid16 = (adv_data[offset++] & 0xff) | ((adv_data[offset++] & 0xff) << 8);
-                        len -= 2;
-                        uuids.add(UUID.fromString(String.format(
-                                "%08x-0000-1000-8000-00805f9b34fb", uuid16)));
-                    }
-                    offset += len;
-                    break;
+    @Override
+    public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
 
-                default:
-                    offset += len;
-                    break;
-            }
-        }
+        // the Android 4.3 scan is unfiltered, onAdvertisement applies the filters
+        onAdvertisement(device, rssi, scanRecord);
 
-        return uuids;
     }
 
-    @Override
-    public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+    // common handling for advertisements from onLeScan and onScanResult
+    private void onAdvertisement(BluetoothDevice device, int rssi, byte[] scanRecord) {
 
         String address = device.getAddress();
+        ScanSession[] sessions = scanSessions.sessions();
 
-        if (!peripherals.containsKey(address)) {
-            
-            List<UUID> uuids = parseUuids(scanRecord);
-            boolean found = false;
-            for(UUID uuid: uuids) {
-                for (UUID uuid2: scanFilterUuids) {
-                    if (uuid.equals(uuid2)) {
-                        found = true;
-                        break;
-                    }                    
-                }
-            }
+        // the hardware scan covers the union of all sessions, so check each session's own filters
+        // when it can't rely on the scanner alone
+        boolean softwareFilter = android.os.Build.VERSION.SDK_INT < 21 || sessions.length > 1;
+        if (sessionMatches.length < sessions.length) {
+            sessionMatches = new boolean[sessions.length];
+        }
+        boolean found = false;
+        advertisingData.wrap(scanRecord);
+        for (int i = 0; i < sessions.length; i++) {
+            ScanSession session = sessions[i];
+            sessionMatches[i] = !(softwareFilter || session.hasSoftwareCriteria()) ||
+                    session.matches(address, rssi, advertisingData);
+            found |= sessionMatches[i];
+        }
+        if (!found) {
+            return;
+        }
 
-            if (found) {
-                Peripheral peripheral = new Peripheral(bluetoothManager, bluetoothAdapter, device, rssi, scanRecord);
-                peripherals.put(device.getAddress(), peripheral);
-    
-    
-                if (discoverCallback != null) {
-                    PluginResult result = new PluginResult(PluginResult.Status.OK, peripheral.asJSONObject());
-                    result.setKeepCallback(true);
-                    discoverCallback.sendPluginResult(result);
-                }
+        // reuse the existing peripheral so a connected device keeps its gatt, queue and callbacks
+        Peripheral peripheral = peripherals.get(address);
+        if (peripheral == null) {
+            Peripheral created = new Peripheral(bluetoothManager, bluetoothAdapter, device, rssi, scanRecord);
+            // keep tracking a peripheral that was evicted and found again
+            created.setProximityTracker(proximityTrackers.get(address));
+            peripheral = peripherals.putIfAbsent(address, created);
+            if (peripheral != created) {
+                peripheral.update(rssi, scanRecord);
             }
-
         } else {
-            // this isn't necessary
-            Peripheral peripheral = peripherals.get(address);
-            peripheral.updateRssi(rssi);
-
-            if (discoverCallback != null) {
-                PluginResult result = new PluginResult(PluginResult.Status.OK, peripheral.asJSONObject());
-                result.setKeepCallback(true);
-                discoverCallback.sendPluginResult(result);
-            }
+            peripheral.update(rssi, scanRecord);
         }
 
-        // TODO offer option to return duplicates
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessionMatches[i]) {
+                sessions[i].onAdvertisement(peripheral, rssi, scanRecord);
+            }
+        }
+    }
 
+    // the peripheral is out of range or was evicted from the registry
+    private void onPeripheralLost(String address) {
+        for (ScanSession session : scanSessions.sessions()) {
+            session.onLost(address);
+        }
     }
 
     @Override
@@ -636,4 +1155,13 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         return UUIDHelper.uuidFromString(uuid);
     }
 
+    // arguments 1 and 2 are the service and characteristic UUIDs, or null and the characteristic's handle
+    private UUID uuidArg(CordovaArgs args, int index) throws JSONException {
+        return args.isNull(1) ? null : uuidFromString(args.getString(index));
+    }
+
+    private int handleArg(CordovaArgs args) throws JSONException {
+        return args.isNull(1) ? args.getInt(2) : GattIndex.NO_HANDLE;
+    }
+
 }
@@ -1,6 +1,9 @@
 package com.megster.cordova.ble.central;
 
+import android.bluetooth.BluetoothGattCharacteristic;
+
 import org.apache.cordova.CallbackContext;
+import org.json.JSONObject;
 
 import java.util.UUID;
 
@@ -12,14 +15,29 @@ class BLECommand {
     // Types
     public static int READ = 10000;
     public static int REGISTER_NOTIFY = 10001;
+    public static int WRITE_LARGE = 10002;
+    public static int REQUEST_MTU = 10003;
+    public static int REQUEST_CONNECTION_PRIORITY = 10004;
+    public static int SET_PREFERRED_PHY = 10005;
+    public static int REMOVE_NOTIFY = 10006;
+    public static int ENABLE_NOTIFY = 10007; // enable notifications without a callback, see BatchOperation
+    public static int READ_DESCRIPTOR = 10008;
+    public static int WRITE_DESCRIPTOR = 10009;
     // BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
     // BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
 
     private CallbackContext callbackContext;
     private UUID serviceUUID;
     private UUID characteristicUUID;
+    private UUID descriptorUUID;
+    private int handle = GattIndex.NO_HANDLE; // addresses one characteristic instance, see GattIndex
     private byte[] data;
     private int type;
+    private int value; // argument of commands without a characteristic, e.g. the MTU
+    private long timeout = -1; // ms, -1 uses CommandTimeouts
+    private int priority = CommandQueue.INTERACTIVE;
+    private long enqueued; // SystemClock.elapsedRealtime() when queued
+    private boolean coalescable = true; // other reads may join this read, see CommandQueue.coalesceRead
 
 
     public BLECommand(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int type) {
@@ -37,6 +55,21 @@ class BLECommand {
         this.type = type;
     }
 
+    public BLECommand(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID, byte[] data, int type) {
+        this.callbackContext = callbackContext;
+        this.serviceUUID = serviceUUID;
+        this.characteristicUUID = characteristicUUID;
+        this.descriptorUUID = descriptorUUID;
+        this.data = data;
+        this.type = type;
+    }
+
+    public BLECommand(CallbackContext callbackContext, int type, int value) {
+        this.callbackContext = callbackContext;
+        this.type = type;
+        this.value = value;
+    }
+
     public int getType() {
         return type;
     }
@@ -45,6 +78,10 @@ class BLECommand {
         return callbackContext;
     }
 
+    public void setCallbackContext(CallbackContext callbackContext) {
+        this.callbackContext = callbackContext;
+    }
+
     public UUID getServiceUUID() {
         return serviceUUID;
     }
@@ -53,7 +90,78 @@ class BLECommand {
         return characteristicUUID;
     }
 
+    public int getHandle() {
+        return handle;
+    }
+
+    public void setHandle(int handle) {
+        this.handle = handle;
+    }
+
+    // address the characteristic of a handle by its UUIDs too, for the logs, cancelCommands and coalescing
+    public void setCharacteristic(BluetoothGattCharacteristic characteristic) {
+        this.serviceUUID = characteristic.getService().getUuid();
+        this.characteristicUUID = characteristic.getUuid();
+    }
+
+    public UUID getDescriptorUUID() {
+        return descriptorUUID;
+    }
+
     public byte[] getData() {
         return data;
     }
+
+    public int getValue() {
+        return value;
+    }
+
+    public long getTimeout() {
+        return timeout >= 0 ? timeout : CommandTimeouts.forType(type);
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public boolean isCoalescable() {
+        return coalescable;
+    }
+
+    public void setCoalescable(boolean coalescable) {
+        this.coalescable = coalescable;
+    }
+
+    public long getEnqueued() {
+        return enqueued;
+    }
+
+    public void setEnqueued(long enqueued) {
+        this.enqueued = enqueued;
+    }
+
+    /**
+     * Apply the per call options {priority, timeout}.
+     * Returns false if the priority is not a lane name.
+     */
+    public boolean setOptions(JSONObject options) {
+        if (options == null) {
+            return true;
+        }
+        if (options.has("priority")) {
+            int lane = CommandQueue.laneForName(options.optString("priority"));
+            if (lane < 0) {
+                return false;
+            }
+            priority = lane;
+        }
+        if (options.has("timeout")) {
+            timeout = Math.max(0, options.optLong("timeout"));
+        }
+        return true;
+    }
 }
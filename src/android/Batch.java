@@ -0,0 +1,253 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Base64;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A list of GATT operations sent in one call to the batch action.
+ *
+ * The operations are queued together and run back to back without a round trip to JavaScript.
+ * Each one reports to its own BatchCallbackContext; when the last one is done the batch sends
+ * one array of results. With abortOnError the operations that haven't started when one fails
+ * are removed from the queue.
+ */
+class Batch {
+
+    private final CallbackContext callbackContext;
+    private final Peripheral peripheral;
+    private final boolean abortOnError;
+    private final List<BLECommand> commands = new ArrayList<BLECommand>();
+    private final String[] operations;
+    private final JSONObject[] results;
+    private int remaining;
+    private int firstError = -1;
+
+    /**
+     * Sends the result of one operation to the batch. Later results, e.g. from an operation that
+     * was aborted, are ignored.
+     */
+    static class BatchCallbackContext extends CallbackContext {
+
+        private final Batch batch;
+        private final int index;
+
+        BatchCallbackContext(Batch batch, int index) {
+            super(batch.callbackContext.getCallbackId(), null);
+            this.batch = batch;
+            this.index = index;
+        }
+
+        @Override
+        public void success() {
+            batch.complete(index, true, null);
+        }
+
+        @Override
+        public void success(byte[] value) {
+            batch.complete(index, true, Base64.encodeToString(value, Base64.NO_WRAP));
+        }
+
+        @Override
+        public void error(String message) {
+            batch.complete(index, false, message);
+        }
+
+        @Override
+        public void error(int status) {
+            batch.complete(index, false, "status=" + status);
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult pluginResult) {
+            if (pluginResult.getStatus() == PluginResult.Status.NO_RESULT.ordinal()) {
+                return;
+            }
+            boolean ok = pluginResult.getStatus() == PluginResult.Status.OK.ordinal();
+            if (ok && pluginResult.getMessageType() == PluginResult.MESSAGE_TYPE_ARRAYBUFFER) {
+                batch.complete(index, true, pluginResult.getMessage()); // already base64
+            } else {
+                batch.complete(index, ok, ok ? null : pluginResult.getMessage());
+            }
+        }
+    }
+
+    private Batch(CallbackContext callbackContext, Peripheral peripheral, int size, boolean abortOnError) {
+        this.callbackContext = callbackContext;
+        this.peripheral = peripheral;
+        this.abortOnError = abortOnError;
+        this.operations = new String[size];
+        this.results = new JSONObject[size];
+        this.remaining = size;
+    }
+
+    /**
+     * Parse every operation before anything is queued, so an invalid batch runs nothing.
+     * options are {abortOnError, priority}, each operation may set its own timeout.
+     */
+    static Batch fromJSON(CallbackContext callbackContext, Peripheral peripheral, JSONArray operations, JSONObject options) throws JSONException {
+        if (options == null) {
+            options = new JSONObject();
+        }
+        Batch batch = new Batch(callbackContext, peripheral, operations.length(), options.optBoolean("abortOnError", false));
+
+        for (int i = 0; i < operations.length(); i++) {
+            JSONObject operation = operations.getJSONObject(i);
+            BLECommand command = createCommand(new BatchCallbackContext(batch, i), operation);
+            // an aborted batch removes its commands, so no other read may depend on one
+            command.setCoalescable(false);
+            if (operation.has("handle")) {
+                command.setHandle(operation.getInt("handle"));
+                if (!peripheral.resolveHandle(command)) {
+                    throw new JSONException("Characteristic handle " + command.getHandle() + " not found");
+                }
+            }
+
+            JSONObject commandOptions = new JSONObject();
+            if (options.has("priority")) {
+                commandOptions.put("priority", options.get("priority"));
+            }
+            if (operation.has("timeout")) {
+                commandOptions.put("timeout", operation.get("timeout"));
+            }
+            if (!command.setOptions(commandOptions)) {
+                throw new JSONException("Invalid priority " + options.optString("priority"));
+            }
+
+            batch.operations[i] = operation.getString("op");
+            batch.commands.add(command);
+        }
+        return batch;
+    }
+
+    private static BLECommand createCommand(CallbackContext callbackContext, JSONObject operation) throws JSONException {
+        String op = operation.getString("op");
+        // an operation addresses the characteristic by service and characteristic, or by handle
+        UUID serviceUUID = null;
+        UUID characteristicUUID = null;
+        if (!operation.has("handle")) {
+            serviceUUID = UUIDHelper.uuidFromString(operation.getString("service"));
+            characteristicUUID = UUIDHelper.uuidFromString(operation.getString("characteristic"));
+        }
+
+        if (op.equals("read")) {
+            return new BLECommand(callbackContext, serviceUUID, characteristicUUID, BLECommand.READ);
+        } else if (op.equals("write")) {
+            return new BLECommand(callbackContext, serviceUUID, characteristicUUID, getBytes(operation), BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        } else if (op.equals("writeWithoutResponse")) {
+            return new BLECommand(callbackContext, serviceUUID, characteristicUUID, getBytes(operation), BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        } else if (op.equals("startNotification")) {
+            return new BLECommand(callbackContext, serviceUUID, characteristicUUID, BLECommand.ENABLE_NOTIFY);
+        } else if (op.equals("stopNotification")) {
+            return new BLECommand(callbackContext, serviceUUID, characteristicUUID, BLECommand.REMOVE_NOTIFY);
+        } else if (op.equals("readDescriptor")) {
+            UUID descriptorUUID = UUIDHelper.uuidFromString(operation.getString("descriptor"));
+            return new BLECommand(callbackContext, serviceUUID, characteristicUUID, descriptorUUID, null, BLECommand.READ_DESCRIPTOR);
+        } else if (op.equals("writeDescriptor")) {
+            UUID descriptorUUID = UUIDHelper.uuidFromString(operation.getString("descriptor"));
+            return new BLECommand(callbackContext, serviceUUID, characteristicUUID, descriptorUUID, getBytes(operation), BLECommand.WRITE_DESCRIPTOR);
+        }
+        throw new JSONException("Invalid batch operation " + op);
+    }
+
+    // the value is an array of numbers, ArrayBuffers are not converted when nested in the arguments
+    private static byte[] getBytes(JSONObject operation) throws JSONException {
+        JSONArray array = operation.getJSONArray("value");
+        byte[] bytes = new byte[array.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) array.getInt(i);
+        }
+        return bytes;
+    }
+
+    List<BLECommand> getCommands() {
+        return commands;
+    }
+
+    private synchronized void complete(int index, boolean ok, String value) {
+        if (results[index] != null) {
+            return;
+        }
+        results[index] = result(index, ok, value);
+        remaining--;
+
+        if (!ok && firstError < 0) {
+            firstError = index;
+            if (abortOnError) {
+                peripheral.cancelBatch(commands);
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] == null) {
+                        results[i] = result(i, false, "Aborted");
+                        remaining--;
+                    }
+                }
+            }
+        }
+
+        if (remaining == 0) {
+            finish();
+        }
+    }
+
+    private JSONObject result(int index, boolean ok, String value) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("op", operations[index]);
+            json.put("ok", ok);
+            if (ok && value != null) {
+                json.put("value", value);
+            } else if (!ok) {
+                json.put("error", value);
+            }
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    // success gets the results, failure gets {index, error, results} for the first failed operation
+    private void finish() {
+        JSONArray array = new JSONArray();
+        for (JSONObject result : results) {
+            array.put(result);
+        }
+
+        if (firstError < 0) {
+            callbackContext.success(array);
+            return;
+        }
+
+        JSONObject json = new JSONObject();
+        try {
+            json.put("index", firstError);
+            json.put("error", results[firstError].opt("error"));
+            json.put("results", array);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        callbackContext.error(json);
+    }
+}
@@ -0,0 +1,80 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Last value seen for each characteristic of a connection, from reads and notifications.
+ *
+ * Keys are the characteristic's handle, see GattIndex. The cache only lives as long as the
+ * connection and is cleared when the peripheral's services change.
+ */
+class CharacteristicCache {
+
+    // the value array is reused while the length stays the same, notifications don't allocate
+    private static class Entry {
+        byte[] value;
+        long time;
+    }
+
+    private final SparseArray<Entry> entries = new SparseArray<Entry>();
+    private long hits;
+    private long misses;
+
+    synchronized void put(int handle, byte[] value) {
+        if (value == null) {
+            return;
+        }
+        Entry entry = entries.get(handle);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(handle, entry);
+        }
+        // the stack reuses the characteristic's value array
+        if (entry.value == null || entry.value.length != value.length) {
+            entry.value = new byte[value.length];
+        }
+        System.arraycopy(value, 0, entry.value, 0, value.length);
+        entry.time = SystemClock.elapsedRealtime();
+    }
+
+    // a copy of the value if it is at most maxAge ms old, otherwise null
+    synchronized byte[] get(int handle, long maxAge) {
+        Entry entry = entries.get(handle);
+        if (entry != null && SystemClock.elapsedRealtime() - entry.time <= maxAge) {
+            hits++;
+            return entry.value.clone();
+        }
+        misses++;
+        return null;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized JSONObject stats() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("entries", entries.size());
+        json.put("hits", hits);
+        json.put("misses", misses);
+        return json;
+    }
+}
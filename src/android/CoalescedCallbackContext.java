@@ -0,0 +1,52 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends every result to all the callbacks of a coalesced command.
+ *
+ * Duplicate reads of a characteristic that is already queued join the queued command instead of
+ * adding another GATT read; the command's callback is replaced by one of these.
+ */
+class CoalescedCallbackContext extends CallbackContext {
+
+    private final List<CallbackContext> callbacks = new ArrayList<CallbackContext>();
+
+    CoalescedCallbackContext(CallbackContext first) {
+        super(first.getCallbackId(), null);
+        callbacks.add(first);
+    }
+
+    synchronized void add(CallbackContext callbackContext) {
+        callbacks.add(callbackContext);
+    }
+
+    synchronized int size() {
+        return callbacks.size();
+    }
+
+    @Override
+    public synchronized void sendPluginResult(PluginResult pluginResult) {
+        for (CallbackContext callbackContext : callbacks) {
+            callbackContext.sendPluginResult(pluginResult);
+        }
+    }
+}
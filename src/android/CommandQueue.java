@@ -0,0 +1,247 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Commands waiting for a peripheral, in one FIFO lane per priority.
+ *
+ * The next command is the head of the highest priority lane. A command that has waited long
+ * enough is treated as one lane higher for every AGING_INTERVAL ms, so a steady stream of control
+ * or interactive commands can delay bulk commands but never starve them. Between lanes of equal
+ * effective priority the older command goes first.
+ *
+ * A read of a characteristic that already has a read queued in the same or a higher lane joins
+ * that read: one GATT read answers all the callbacks. Reads that are already running are not
+ * joined, their value may be older than the new request.
+ *
+ * The wait time of every command that leaves the queue is recorded per lane, see stats().
+ */
+class CommandQueue {
+
+    static final int CONTROL = 0;
+    static final int INTERACTIVE = 1;
+    static final int BULK = 2;
+
+    private static final String[] LANES = { "control", "interactive", "bulk" };
+
+    // a waiting command gains one lane per interval
+    private static final long AGING_INTERVAL = 1000;
+
+    @SuppressWarnings("unchecked")
+    private final LinkedList<BLECommand>[] lanes = new LinkedList[] { new LinkedList<BLECommand>(), new LinkedList<BLECommand>(), new LinkedList<BLECommand>() };
+
+    private final long[] started = new long[LANES.length];
+    private final long[] cancelled = new long[LANES.length];
+    private final long[] coalesced = new long[LANES.length];
+    private final long[] totalWait = new long[LANES.length];
+    private final long[] maxWait = new long[LANES.length];
+
+    // lane for the name, or -1
+    static int laneForName(String name) {
+        for (int i = 0; i < LANES.length; i++) {
+            if (LANES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    synchronized void add(BLECommand command) {
+        command.setEnqueued(SystemClock.elapsedRealtime());
+        lanes[command.getPriority()].add(command);
+    }
+
+    /**
+     * Attach the callback of a read to a queued read of the same characteristic.
+     * Returns false if there is none and the read must be queued.
+     */
+    synchronized boolean coalesceRead(BLECommand read) {
+        // a handle queued while the services are discovered has no UUIDs yet
+        if (isUnresolved(read)) {
+            return false;
+        }
+        for (int i = 0; i <= read.getPriority(); i++) {
+            for (BLECommand command : lanes[i]) {
+                if (command.getType() == BLECommand.READ && command.isCoalescable() && !isUnresolved(command) &&
+                        command.getServiceUUID().equals(read.getServiceUUID()) &&
+                        command.getCharacteristicUUID().equals(read.getCharacteristicUUID()) &&
+                        command.getHandle() == read.getHandle()) {
+
+                    CallbackContext callbackContext = command.getCallbackContext();
+                    if (!(callbackContext instanceof CoalescedCallbackContext)) {
+                        callbackContext = new CoalescedCallbackContext(callbackContext);
+                        command.setCallbackContext(callbackContext);
+                    }
+                    ((CoalescedCallbackContext) callbackContext).add(read.getCallbackContext());
+                    coalesced[read.getPriority()]++;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // add the commands in order, no other command is queued between them
+    synchronized void addAll(List<BLECommand> commands) {
+        for (BLECommand command : commands) {
+            add(command);
+        }
+    }
+
+    // drop commands that haven't started, they count as cancelled
+    synchronized void removeAll(List<BLECommand> commands) {
+        for (BLECommand command : commands) {
+            if (lanes[command.getPriority()].remove(command)) {
+                cancelled[command.getPriority()]++;
+            }
+        }
+    }
+
+    // the command poll() would return
+    synchronized BLECommand peek() {
+        int lane = nextLane(SystemClock.elapsedRealtime());
+        return lane < 0 ? null : lanes[lane].getFirst();
+    }
+
+    synchronized BLECommand poll() {
+        long now = SystemClock.elapsedRealtime();
+        int lane = nextLane(now);
+        if (lane < 0) {
+            return null;
+        }
+        BLECommand command = lanes[lane].removeFirst();
+        recordWait(command, now);
+        return command;
+    }
+
+    // remove a command returned by peek()
+    synchronized boolean remove(BLECommand command) {
+        if (!lanes[command.getPriority()].remove(command)) {
+            return false;
+        }
+        recordWait(command, SystemClock.elapsedRealtime());
+        return true;
+    }
+
+    /**
+     * Remove the waiting commands that match, null matches anything.
+     * The caller fails their callbacks.
+     */
+    synchronized List<BLECommand> cancel(UUID serviceUUID, UUID characteristicUUID, int lane) {
+        List<BLECommand> removed = new ArrayList<BLECommand>();
+        for (int i = 0; i < lanes.length; i++) {
+            if (lane >= 0 && lane != i) {
+                continue;
+            }
+            Iterator<BLECommand> iterator = lanes[i].iterator();
+            while (iterator.hasNext()) {
+                BLECommand command = iterator.next();
+                if ((serviceUUID == null || serviceUUID.equals(command.getServiceUUID())) &&
+                        (characteristicUUID == null || characteristicUUID.equals(command.getCharacteristicUUID()))) {
+                    iterator.remove();
+                    removed.add(command);
+                    cancelled[i]++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    // remove the waiting commands addressed by a handle that isn't resolved yet, the caller fails them
+    synchronized List<BLECommand> removeUnresolved() {
+        List<BLECommand> removed = new ArrayList<BLECommand>();
+        for (int i = 0; i < lanes.length; i++) {
+            Iterator<BLECommand> iterator = lanes[i].iterator();
+            while (iterator.hasNext()) {
+                BLECommand command = iterator.next();
+                if (isUnresolved(command)) {
+                    iterator.remove();
+                    removed.add(command);
+                    cancelled[i]++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private static boolean isUnresolved(BLECommand command) {
+        return command.getHandle() != GattIndex.NO_HANDLE && command.getCharacteristicUUID() == null;
+    }
+
+    synchronized boolean isEmpty() {
+        for (LinkedList<BLECommand> lane : lanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // per lane: commands waiting, started and cancelled, average and longest wait in ms
+    synchronized JSONObject stats() throws JSONException {
+        JSONObject json = new JSONObject();
+        for (int i = 0; i < lanes.length; i++) {
+            JSONObject lane = new JSONObject();
+            lane.put("pending", lanes[i].size());
+            lane.put("started", started[i]);
+            lane.put("cancelled", cancelled[i]);
+            lane.put("coalesced", coalesced[i]);
+            lane.put("averageWait", started[i] == 0 ? 0 : totalWait[i] / started[i]);
+            lane.put("maxWait", maxWait[i]);
+            json.put(LANES[i], lane);
+        }
+        return json;
+    }
+
+    private void recordWait(BLECommand command, long now) {
+        int lane = command.getPriority();
+        long wait = now - command.getEnqueued();
+        started[lane]++;
+        totalWait[lane] += wait;
+        maxWait[lane] = Math.max(maxWait[lane], wait);
+    }
+
+    // lane of the next command, or -1 if the queue is empty
+    private int nextLane(long now) {
+        int best = -1;
+        long bestPriority = 0;
+        long bestEnqueued = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            if (lanes[i].isEmpty()) {
+                continue;
+            }
+            long enqueued = lanes[i].getFirst().getEnqueued();
+            long priority = Math.max(0, i - (now - enqueued) / AGING_INTERVAL);
+            if (best < 0 || priority < bestPriority || (priority == bestPriority && enqueued < bestEnqueued)) {
+                best = i;
+                bestPriority = priority;
+                bestEnqueued = enqueued;
+            }
+        }
+        return best;
+    }
+}
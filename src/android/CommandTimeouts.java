@@ -0,0 +1,58 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.json.JSONObject;
+
+/**
+ * Default deadline for each type of queued command, in ms. 0 waits forever.
+ *
+ * A GATT callback that never arrives would otherwise block the command queue of the peripheral
+ * until it disconnects. The values are shared by all peripherals and can be overridden per call.
+ */
+class CommandTimeouts {
+
+    static volatile long read = 10000;
+    static volatile long write = 10000; // per chunk for writeLarge
+    static volatile long notify = 10000;
+    static volatile long mtu = 10000;
+    static volatile long phy = 10000;
+
+    static void configure(JSONObject json) {
+        read = Math.max(0, json.optLong("read", read));
+        write = Math.max(0, json.optLong("write", write));
+        notify = Math.max(0, json.optLong("notify", notify));
+        mtu = Math.max(0, json.optLong("mtu", mtu));
+        phy = Math.max(0, json.optLong("phy", phy));
+    }
+
+    static long forType(int type) {
+        if (type == BLECommand.READ || type == BLECommand.READ_DESCRIPTOR) {
+            return read;
+        } else if (type == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT || type == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ||
+                type == BLECommand.WRITE_LARGE || type == BLECommand.WRITE_DESCRIPTOR) {
+            return write;
+        } else if (type == BLECommand.REGISTER_NOTIFY || type == BLECommand.ENABLE_NOTIFY || type == BLECommand.REMOVE_NOTIFY) {
+            return notify;
+        } else if (type == BLECommand.REQUEST_MTU) {
+            return mtu;
+        } else if (type == BLECommand.SET_PREFERRED_PHY) {
+            return phy;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,77 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Options passed to connectWithOptions. The defaults are used for connect.
+ */
+class ConnectOptions {
+
+    static final int PRIORITY_HIGH = 0;
+    static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITY_LOW = 2;
+
+    int priority = PRIORITY_NORMAL;
+
+    // failed attempts are retried after retryDelay ms, doubling up to maxRetryDelay
+    int retries = 0;
+    long retryDelay = 1000;
+    long maxRetryDelay = 30000;
+
+    // give up on an attempt after timeout ms, 0 waits for the Bluetooth stack
+    long timeout = 0;
+
+    // request this MTU after service discovery, 0 keeps the default, MAX_MTU for the largest
+    int mtu = 0;
+
+    // send queue position and attempt status messages to the success callback
+    boolean reportStatus = false;
+
+    // answer the connect from the persisted layout of an earlier connection, see GattCache
+    boolean useGattCache = false;
+
+    private static final String[] PRIORITIES = { "high", "normal", "low" };
+
+    static ConnectOptions fromJSON(JSONObject json) throws JSONException {
+        ConnectOptions options = new ConnectOptions();
+        options.reportStatus = true;
+        if (json == null) {
+            return options;
+        }
+
+        String priority = json.optString("priority", PRIORITIES[options.priority]);
+        options.priority = -1;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            if (PRIORITIES[i].equals(priority)) {
+                options.priority = i;
+            }
+        }
+        if (options.priority < 0) {
+            throw new JSONException("Invalid priority " + priority);
+        }
+
+        options.retries = Math.max(0, json.optInt("retries", options.retries));
+        options.retryDelay = Math.max(0, json.optLong("retryDelay", options.retryDelay));
+        options.maxRetryDelay = Math.max(options.retryDelay, json.optLong("maxRetryDelay", options.maxRetryDelay));
+        options.timeout = Math.max(0, json.optLong("timeout", options.timeout));
+        options.mtu = Math.max(0, Math.min(Peripheral.MAX_MTU, json.optInt("mtu", options.mtu)));
+        options.useGattCache = json.optBoolean("useGattCache", options.useGattCache);
+
+        return options;
+    }
+}
@@ -0,0 +1,308 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.LOG;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Limits the number of connection attempts in flight.
+ *
+ * Requests wait in one FIFO queue per priority. When a slot is free the head of the highest
+ * priority queue is started; a request that has waited long enough is treated as one priority
+ * higher, so low priority devices are not starved. Failed attempts free their slot and are
+ * queued again at the back after an exponential backoff with jitter, which keeps a fleet of
+ * failing devices from retrying in lockstep.
+ */
+class ConnectionScheduler implements Peripheral.ConnectionListener {
+
+    static final int DEFAULT_MAX_CONCURRENT = 3;
+
+    private static final String TAG = "ConnectionScheduler";
+
+    // a waiting request gains one priority level per interval
+    private static final long AGING_INTERVAL = 5000;
+
+    private static class Request {
+        final Peripheral peripheral;
+        final CallbackContext callbackContext;
+        final ConnectOptions options;
+        final Activity activity;
+        final long requested = SystemClock.elapsedRealtime();
+
+        long enqueued;
+        long started;
+        long queueTime; // total time spent waiting for a slot
+        int attempts;
+        int position;
+        boolean active;
+        Runnable pending; // attempt timeout or retry
+
+        Request(Peripheral peripheral, CallbackContext callbackContext, ConnectOptions options, Activity activity) {
+            this.peripheral = peripheral;
+            this.callbackContext = callbackContext;
+            this.options = options;
+            this.activity = activity;
+        }
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+
+    @SuppressWarnings("unchecked")
+    private final LinkedList<Request>[] queues = new LinkedList[] { new LinkedList<Request>(), new LinkedList<Request>(), new LinkedList<Request>() };
+
+    // queued, connecting and backing off requests, key is the MAC Address
+    private final Map<String, Request> requests = new HashMap<String, Request>();
+
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private int active = 0;
+
+    synchronized void configure(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        dispatch();
+    }
+
+    synchronized void connect(Peripheral peripheral, CallbackContext callbackContext, ConnectOptions options, Activity activity) {
+        String address = peripheral.getAddress();
+        if (requests.containsKey(address)) {
+            callbackContext.error("Connection to " + address + " is already pending.");
+            return;
+        }
+
+        Request request = new Request(peripheral, callbackContext, options, activity);
+        requests.put(address, request);
+        peripheral.setConnectionPending(true);
+
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+
+        enqueue(request);
+        dispatch();
+    }
+
+    // drop a request that is waiting for a slot or a retry, returns false if it wasn't waiting
+    synchronized boolean cancel(String address) {
+        Request request = requests.get(address);
+        if (request == null || request.active) {
+            return false;
+        }
+        requests.remove(address);
+        request.peripheral.setConnectionPending(false);
+        queues[request.options.priority].remove(request);
+        if (request.pending != null) {
+            handler.removeCallbacks(request.pending);
+        }
+        request.callbackContext.error("disconnected");
+        reportPositions();
+        return true;
+    }
+
+    @Override
+    public synchronized void onConnected(Peripheral peripheral, JSONObject json) {
+        Request request = finish(peripheral);
+        if (request == null) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        try {
+            JSONObject timing = new JSONObject();
+            timing.put("queued", request.queueTime);
+            timing.put("connect", now - request.started);
+            timing.put("total", now - request.requested);
+            timing.put("attempts", request.attempts);
+            json.put("connectionTiming", timing);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        LOG.d(TAG, "Connected " + peripheral.getAddress() + " after " + request.attempts + " attempt(s)");
+
+        dispatch();
+    }
+
+    @Override
+    public synchronized boolean onConnectFailed(Peripheral peripheral, CallbackContext callbackContext, String message) {
+        Request request = finish(peripheral);
+        if (request == null) {
+            return false;
+        }
+
+        boolean retry = request.attempts <= request.options.retries;
+        if (retry) {
+            retry(request, message);
+        }
+        dispatch();
+        return retry;
+    }
+
+    @Override
+    public synchronized void onConnectCancelled(Peripheral peripheral) {
+        finish(peripheral);
+        dispatch();
+    }
+
+    // the attempt is over, free its slot
+    private Request finish(Peripheral peripheral) {
+        Request request = requests.get(peripheral.getAddress());
+        if (request == null || !request.active) {
+            return null;
+        }
+        request.active = false;
+        active--;
+        if (request.pending != null) {
+            handler.removeCallbacks(request.pending);
+            request.pending = null;
+        }
+        requests.remove(peripheral.getAddress());
+        peripheral.setConnectionPending(false);
+        return request;
+    }
+
+    private void retry(final Request request, String message) {
+        long delay = Math.min(request.options.retryDelay << Math.min(request.attempts - 1, 16), request.options.maxRetryDelay);
+        // half fixed, half random
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+
+        LOG.d(TAG, "Retrying " + request.peripheral.getAddress() + " in " + delay + " ms: " + message);
+        sendStatus(request, "retrying", "error", message, "delay", delay);
+
+        requests.put(request.peripheral.getAddress(), request);
+        request.peripheral.setConnectionPending(true);
+        request.pending = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConnectionScheduler.this) {
+                    if (request.pending == this) {
+                        request.pending = null;
+                        enqueue(request);
+                        dispatch();
+                    }
+                }
+            }
+        };
+        handler.postDelayed(request.pending, delay);
+    }
+
+    private void enqueue(Request request) {
+        request.enqueued = SystemClock.elapsedRealtime();
+        queues[request.options.priority].add(request);
+    }
+
+    // start attempts while slots are free
+    private void dispatch() {
+        while (active < maxConcurrent) {
+            Request request = next();
+            if (request == null) {
+                break;
+            }
+            start(request);
+        }
+        reportPositions();
+    }
+
+    // head of the queue with the best priority after aging
+    private Request next() {
+        long now = SystemClock.elapsedRealtime();
+        int best = -1;
+        long bestPriority = Long.MAX_VALUE;
+        for (int i = 0; i < queues.length; i++) {
+            Request head = queues[i].peek();
+            if (head != null) {
+                long priority = i - (now - head.enqueued) / AGING_INTERVAL;
+                if (priority < bestPriority) {
+                    best = i;
+                    bestPriority = priority;
+                }
+            }
+        }
+        return best < 0 ? null : queues[best].poll();
+    }
+
+    private void start(final Request request) {
+        long now = SystemClock.elapsedRealtime();
+        request.queueTime += now - request.enqueued;
+        request.started = now;
+        request.attempts++;
+        request.active = true;
+        request.position = 0;
+        active++;
+
+        LOG.d(TAG, "Connecting " + request.peripheral.getAddress() + " attempt " + request.attempts);
+        sendStatus(request, "connecting", "attempt", request.attempts, null, null);
+
+        if (request.options.timeout > 0) {
+            request.pending = new Runnable() {
+                @Override
+                public void run() {
+                    // abortConnect reports back through onConnectFailed
+                    request.peripheral.abortConnect("Connection timed out");
+                }
+            };
+            handler.postDelayed(request.pending, request.options.timeout);
+        }
+
+        request.peripheral.connect(request.callbackContext, request.activity, request.options, this);
+    }
+
+    // tell waiting requests when their place in the queue changes
+    private void reportPositions() {
+        int position = 0;
+        for (LinkedList<Request> queue : queues) {
+            for (Request request : queue) {
+                position++;
+                if (request.position != position) {
+                    request.position = position;
+                    sendStatus(request, "queued", "position", position, null, null);
+                }
+            }
+        }
+    }
+
+    private void sendStatus(Request request, String status, String key, Object value, String key2, Object value2) {
+        if (!request.options.reportStatus) {
+            return;
+        }
+
+        JSONObject json = new JSONObject();
+        try {
+            json.put("id", request.peripheral.getAddress());
+            json.put("status", status);
+            json.put(key, value);
+            if (key2 != null) {
+                json.put(key2, value2);
+            }
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+        result.setKeepCallback(true);
+        request.callbackContext.sendPluginResult(result);
+    }
+}
@@ -0,0 +1,245 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.content.Context;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.LOG;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Service layouts of connected peripherals, persisted so a reconnect with useGattCache can be
+ * answered before service discovery finishes.
+ *
+ * Each device has a small file in files/ble-gatt-cache with its layout hash (see GattIndex), the
+ * time it was saved, and the services and characteristics of the peripheral data. The files are
+ * read once and kept in memory. An entry is replaced when discovery finds a different layout and
+ * removed when the peripheral indicates its services changed.
+ *
+ * The callers run on Binder and main threads, so the files are read and written on a single
+ * background thread, which also applies every change in the order it was made. get answers from
+ * memory and misses until the files are loaded, the connect then waits for discovery.
+ */
+class GattCache {
+
+    private static final String TAG = "GattCache";
+    private static final String DIRECTORY = "ble-gatt-cache";
+    private static final String SUFFIX = ".json";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static GattCache instance;
+
+    private final File directory;
+    private final Map<String, JSONObject> entries = new HashMap<String, JSONObject>();
+    private final Executor io = Executors.newSingleThreadExecutor();
+
+    static synchronized GattCache forContext(Context context) {
+        if (instance == null) {
+            instance = new GattCache(new File(context.getApplicationContext().getFilesDir(), DIRECTORY));
+        }
+        return instance;
+    }
+
+    private GattCache(File directory) {
+        this.directory = directory;
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    // {id, hash, saved, services, characteristics} or null
+    synchronized JSONObject get(String address) {
+        return entries.get(address);
+    }
+
+    // keep the services and characteristics of the peripheral data
+    void put(final String address, String hash, JSONObject peripheral) {
+        final JSONObject entry = new JSONObject();
+        try {
+            entry.put("id", address);
+            entry.put("hash", hash);
+            entry.put("saved", System.currentTimeMillis());
+            entry.put("services", peripheral.get("services"));
+            entry.put("characteristics", peripheral.get("characteristics"));
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+            return;
+        }
+
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (GattCache.this) {
+                    entries.put(address, entry);
+                }
+                write(address, entry);
+            }
+        });
+    }
+
+    void remove(final String address) {
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (GattCache.this) {
+                    entries.remove(address);
+                }
+                file(address).delete();
+            }
+        });
+    }
+
+    void clear() {
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                String[] addresses;
+                synchronized (GattCache.this) {
+                    addresses = entries.keySet().toArray(new String[entries.size()]);
+                    entries.clear();
+                }
+                for (String address : addresses) {
+                    file(address).delete();
+                }
+            }
+        });
+    }
+
+    // the entries without the layouts, after the changes made so far
+    void list(final CallbackContext callbackContext) {
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    callbackContext.success(summaries());
+                } catch (JSONException e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    private synchronized JSONArray summaries() throws JSONException {
+        JSONArray json = new JSONArray();
+        for (JSONObject entry : entries.values()) {
+            JSONObject summary = new JSONObject();
+            summary.put("id", entry.getString("id"));
+            summary.put("hash", entry.getString("hash"));
+            summary.put("saved", entry.getLong("saved"));
+            summary.put("services", entry.getJSONArray("services").length());
+            summary.put("characteristics", entry.getJSONArray("characteristics").length());
+            json.put(summary);
+        }
+        return json;
+    }
+
+    // runs on the io thread
+    private void load() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(SUFFIX)) {
+                file.delete(); // left over from a failed write
+                continue;
+            }
+            try {
+                JSONObject entry = new JSONObject(read(file));
+                synchronized (this) {
+                    entries.put(entry.getString("id"), entry);
+                }
+            } catch (IOException e) {
+                LOG.w(TAG, "Reading " + file + " failed", e);
+            } catch (JSONException e) {
+                LOG.w(TAG, "Removing invalid " + file, e);
+                file.delete();
+            }
+        }
+    }
+
+    // runs on the io thread, writes a new file and renames it, so a crash can't leave a partial layout
+    private void write(String address, JSONObject entry) {
+        File file = file(address);
+        File temp = new File(directory, file.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create " + directory);
+            }
+            out = new FileOutputStream(temp);
+            out.write(entry.toString().getBytes(UTF8));
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can't rename " + temp);
+            }
+        } catch (IOException e) {
+            LOG.w(TAG, "Saving the GATT layout of " + address + " failed", e);
+            temp.delete();
+        } finally {
+            close(out);
+        }
+    }
+
+    private File file(String address) {
+        return new File(directory, address.replace(":", "") + SUFFIX);
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+            return new String(bytes.toByteArray(), UTF8);
+        } finally {
+            close(in);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
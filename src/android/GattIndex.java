@@ -0,0 +1,133 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.util.SparseArray;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The services and characteristics of a connection, indexed once when the services are discovered.
+ *
+ * BluetoothGatt.getService and BluetoothGattService.getCharacteristic scan a list on every call.
+ * The index resolves a service and characteristic UUID with two hash lookups, and a handle with a
+ * SparseArray. Handles are numbered from 1 in discovery order, so the same layout gets the same
+ * handles, and they tell apart characteristics that share a UUID. The instance id can't be used:
+ * before API 24 it only counts the instances of a UUID and is usually 0. Android hands the
+ * discovered characteristic objects to the callbacks, so handle() finds them by identity.
+ * Like getCharacteristic, a UUID resolves to the first instance.
+ *
+ * An index is not modified after it is built, a new discovery replaces it, so it is read without locking.
+ *
+ * The hash covers the UUIDs, handles and properties of the layout, so a persisted layout (see
+ * GattCache) can be checked against the discovered one.
+ */
+class GattIndex {
+
+    static final int NO_HANDLE = -1;
+
+    static final GattIndex EMPTY = new GattIndex();
+
+    // FNV-1a
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Map<UUID, Map<UUID, BluetoothGattCharacteristic>> services = new HashMap<UUID, Map<UUID, BluetoothGattCharacteristic>>();
+    private final SparseArray<BluetoothGattCharacteristic> handles = new SparseArray<BluetoothGattCharacteristic>();
+    private final Map<BluetoothGattCharacteristic, Integer> handleOf = new IdentityHashMap<BluetoothGattCharacteristic, Integer>();
+    private long hash = FNV_OFFSET;
+
+    static GattIndex build(List<BluetoothGattService> services) {
+        GattIndex index = new GattIndex();
+        for (BluetoothGattService service : services) {
+            index.hash(service.getUuid());
+            index.hash(service.getInstanceId());
+
+            Map<UUID, BluetoothGattCharacteristic> characteristics = index.services.get(service.getUuid());
+            if (characteristics == null) {
+                characteristics = new HashMap<UUID, BluetoothGattCharacteristic>();
+                index.services.put(service.getUuid(), characteristics);
+            }
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if (!characteristics.containsKey(characteristic.getUuid())) {
+                    characteristics.put(characteristic.getUuid(), characteristic);
+                }
+                int handle = index.handles.size() + 1;
+                index.handles.put(handle, characteristic);
+                index.handleOf.put(characteristic, handle);
+
+                index.hash(characteristic.getUuid());
+                index.hash(handle);
+                index.hash(characteristic.getInstanceId());
+                index.hash(characteristic.getProperties());
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    index.hash(descriptor.getUuid());
+                }
+            }
+        }
+        return index;
+    }
+
+    boolean hasService(UUID serviceUUID) {
+        return services.containsKey(serviceUUID);
+    }
+
+    // the handle of a discovered characteristic or NO_HANDLE
+    int handle(BluetoothGattCharacteristic characteristic) {
+        Integer handle = handleOf.get(characteristic);
+        return handle == null ? NO_HANDLE : handle;
+    }
+
+    // the characteristic or null
+    BluetoothGattCharacteristic characteristic(int handle) {
+        return handles.get(handle);
+    }
+
+    // the characteristic by handle, or by UUID for NO_HANDLE, or null
+    BluetoothGattCharacteristic characteristic(UUID serviceUUID, UUID characteristicUUID, int handle) {
+        if (handle != NO_HANDLE) {
+            return handles.get(handle);
+        }
+        Map<UUID, BluetoothGattCharacteristic> characteristics = services.get(serviceUUID);
+        return characteristics == null ? null : characteristics.get(characteristicUUID);
+    }
+
+    int size() {
+        return handles.size();
+    }
+
+    String getHash() {
+        return String.format("%016x", hash);
+    }
+
+    private void hash(UUID uuid) {
+        hash(uuid.getMostSignificantBits());
+        hash(uuid.getLeastSignificantBits());
+    }
+
+    private void hash(long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= FNV_PRIME;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Collects the notifications of one subscription and sends them to JavaScript as one ArrayBuffer.
+ *
+ * A batch is flushed when it holds batchSize notifications, batchBytes bytes of values, or
+ * batchInterval ms after its first notification, whichever comes first. Flushes run on the main
+ * thread, so the Binder thread only copies the value into the batch. Values that arrive before a
+ * full batch is flushed join it. The batch is packed in
+ * the format decoded by decodeNotifications in ble.js, all values are little endian:
+ *
+ *   header:  uint8 version, uint8 reserved, uint16 notification count
+ *   record:  float64 timestamp (ms since epoch), uint16 value length, value bytes
+ *
+ * Timestamps are taken on arrival by NotificationSubscription, with sub-millisecond resolution.
+ */
+class NotificationBatcher {
+
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 10;
+    private static final int MAX_BATCH_SIZE = 0xffff;
+
+    private final CallbackContext callbackContext;
+    private final int batchSize;
+    private final int batchBytes;
+    private final long batchInterval;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private byte[] buffer = new byte[512];
+    private int position = HEADER_SIZE;
+    private int count = 0;
+    private boolean flushScheduled = false;
+    private boolean flushPosted = false; // full, flushTask runs next
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (NotificationBatcher.this) {
+                flushScheduled = false;
+                flushPosted = false;
+            }
+            flush();
+        }
+    };
+
+    private NotificationBatcher(CallbackContext callbackContext, int batchSize, int batchBytes, long batchInterval) {
+        this.callbackContext = callbackContext;
+        this.batchSize = batchSize;
+        this.batchBytes = batchBytes;
+        this.batchInterval = batchInterval;
+    }
+
+    // null unless the startNotification options ask for batches
+    static NotificationBatcher fromJSON(CallbackContext callbackContext, JSONObject options) {
+        if (options == null) {
+            return null;
+        }
+        int batchSize = Math.max(0, options.optInt("batchSize", 0));
+        int batchBytes = Math.max(0, options.optInt("batchBytes", 0));
+        long batchInterval = Math.max(0, options.optLong("batchInterval", 0));
+        if (batchSize == 0 && batchBytes == 0 && batchInterval == 0) {
+            return null;
+        }
+        return new NotificationBatcher(callbackContext, batchSize, batchBytes, batchInterval);
+    }
+
+    void add(byte[] value, double timestamp) {
+        add(value, 0, value == null ? 0 : value.length, timestamp);
+    }
+
+    // copies length bytes of value into the batch, allocates only when the batch outgrows its buffer
+    void add(byte[] value, int offset, int length, double timestamp) {
+        length = Math.min(length, 0xffff);
+
+        boolean overflow;
+        synchronized (this) {
+            ensureCapacity(RECORD_HEADER_SIZE + length);
+
+            long bits = Double.doubleToLongBits(timestamp);
+            for (int i = 0; i < 8; i++) {
+                buffer[position++] = (byte) (bits >>> (8 * i));
+            }
+            buffer[position++] = (byte) length;
+            buffer[position++] = (byte) (length >>> 8);
+            if (length > 0) {
+                System.arraycopy(value, offset, buffer, position, length);
+                position += length;
+            }
+            count++;
+
+            boolean full = (batchSize > 0 && count >= batchSize) ||
+                    (batchBytes > 0 && position - HEADER_SIZE - count * RECORD_HEADER_SIZE >= batchBytes);
+            if (full && !flushPosted) {
+                flushPosted = true;
+                flushScheduled = true;
+                handler.removeCallbacks(flushTask);
+                handler.post(flushTask);
+            } else if (!full && batchInterval > 0 && !flushScheduled) {
+                flushScheduled = true;
+                handler.postDelayed(flushTask, batchInterval);
+            }
+            overflow = count >= MAX_BATCH_SIZE;
+        }
+        // the count field can't hold more, don't wait for the main thread
+        if (overflow) {
+            close();
+        }
+    }
+
+    void flush() {
+        byte[] batch;
+        synchronized (this) {
+            if (count == 0) {
+                return;
+            }
+            buffer[0] = (byte) VERSION;
+            buffer[1] = 0;
+            buffer[2] = (byte) count;
+            buffer[3] = (byte) (count >>> 8);
+            batch = Arrays.copyOf(buffer, position);
+            position = HEADER_SIZE;
+            count = 0;
+        }
+
+        PluginResult result = new PluginResult(PluginResult.Status.OK, batch);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+    }
+
+    // send what is left and stop the timer
+    void close() {
+        handler.removeCallbacks(flushTask);
+        synchronized (this) {
+            flushScheduled = false;
+            flushPosted = false;
+        }
+        flush();
+    }
+
+    private void ensureCapacity(int length) {
+        if (position + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+        }
+    }
+}
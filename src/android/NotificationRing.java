@@ -0,0 +1,120 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+/**
+ * Preallocated ring of notification values for the buffered backpressure policies.
+ *
+ * Records are stored in one array in fixed size slots: float64 timestamp, uint16 length and
+ * the value. Slots fit the largest value the MTU allows, so adding a value copies it into the
+ * ring without allocating. A value longer than a slot, possible after the MTU grows, grows the
+ * ring once.
+ *
+ * The oldest record is read in place with oldestOffset(), oldestLength() and oldestTimestamp().
+ * Not thread safe, NotificationSubscription synchronizes access.
+ */
+class NotificationRing {
+
+    private static final int RECORD_HEADER_SIZE = 10;
+
+    private final int capacity;
+    private int slotSize;
+    private byte[] buffer;
+    private int head; // slot of the oldest record
+    private int count;
+
+    NotificationRing(int capacity, int valueSize) {
+        this.capacity = capacity;
+        this.slotSize = RECORD_HEADER_SIZE + valueSize;
+        this.buffer = new byte[capacity * slotSize];
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    boolean isFull() {
+        return count == capacity;
+    }
+
+    // the caller makes room with removeOldest() when the ring is full
+    void add(byte[] value, double timestamp) {
+        int length = Math.min(value.length, 0xffff);
+        if (RECORD_HEADER_SIZE + length > slotSize) {
+            grow(RECORD_HEADER_SIZE + length);
+        }
+
+        int position = ((head + count) % capacity) * slotSize;
+        long bits = Double.doubleToLongBits(timestamp);
+        for (int i = 0; i < 8; i++) {
+            buffer[position++] = (byte) (bits >>> (8 * i));
+        }
+        buffer[position++] = (byte) length;
+        buffer[position++] = (byte) (length >>> 8);
+        System.arraycopy(value, 0, buffer, position, length);
+        count++;
+    }
+
+    byte[] array() {
+        return buffer;
+    }
+
+    // offset of the oldest value in array()
+    int oldestOffset() {
+        return head * slotSize + RECORD_HEADER_SIZE;
+    }
+
+    int oldestLength() {
+        int position = head * slotSize + 8;
+        return (buffer[position] & 0xff) | ((buffer[position + 1] & 0xff) << 8);
+    }
+
+    double oldestTimestamp() {
+        int position = head * slotSize;
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits |= (buffer[position + i] & 0xffL) << (8 * i);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    void removeOldest() {
+        if (count > 0) {
+            head = (head + 1) % capacity;
+            count--;
+        }
+    }
+
+    void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    // copy the records to larger slots, oldest first
+    private void grow(int newSlotSize) {
+        byte[] grown = new byte[capacity * newSlotSize];
+        for (int i = 0; i < count; i++) {
+            int from = ((head + i) % capacity) * slotSize;
+            System.arraycopy(buffer, from, grown, i * newSlotSize, slotSize);
+        }
+        buffer = grown;
+        slotSize = newSlotSize;
+        head = 0;
+    }
+}
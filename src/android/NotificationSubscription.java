@@ -0,0 +1,247 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * One startNotification callback and the policy that decides which notifications reach it.
+ *
+ * Cordova queues every result until the WebView takes it, so a characteristic that notifies faster
+ * than JavaScript handles the values grows that queue without bound. A backpressure policy limits
+ * what is sent and counts what is dropped:
+ *
+ *   conflate     at most one value per interval ms, the latest value wins
+ *   decimate     every Nth notification
+ *   dropOldest   at most one value per interval ms from a buffer of bufferSize values,
+ *   dropNewest   a full buffer drops its oldest value or the new value
+ *
+ * A value is sent at once if the subscription hasn't sent one for interval ms. With batching the
+ * values that pass the policy go to the NotificationBatcher, and a buffer is emptied into the
+ * batch every interval.
+ *
+ * Held values are copied into a preallocated NotificationRing, and batches are packed in the
+ * batcher's reused buffer and flushed on the main thread. With batching or a buffering policy
+ * the Binder thread copies the value into existing buffers, except when the ring or the batch
+ * buffer has to grow for a longer value.
+ *
+ * Every value sent on its own, as with none or decimate without batching, still costs a
+ * PluginResult. It can't be reused: Cordova holds it in its queue until the WebView takes it and
+ * encodes the value when it is created. Batching sends one result per batch instead.
+ * NotificationBenchmark in tests/android measures the allocations per notification.
+ */
+class NotificationSubscription {
+
+    static final int NONE = 0;
+    static final int CONFLATE = 1;
+    static final int DECIMATE = 2;
+    static final int DROP_OLDEST = 3;
+    static final int DROP_NEWEST = 4;
+
+    private static final String[] POLICIES = { "none", "conflate", "decimate", "dropOldest", "dropNewest" };
+
+    private static final long DEFAULT_INTERVAL = 50;
+    private static final int DEFAULT_BUFFER_SIZE = 64;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    // converts SystemClock.elapsedRealtimeNanos() to ms since epoch
+    private static final double EPOCH_OFFSET = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+
+    private final CallbackContext callbackContext;
+    private final NotificationBatcher batcher; // null unless batched
+    private final int policy;
+    private final long interval;
+    private final int decimation;
+    private final int bufferSize;
+
+    private final NotificationRing ring; // null unless the policy holds values, conflate holds one
+    private long lastSent = Long.MIN_VALUE / 2;
+    private boolean tickScheduled = false;
+    private boolean closed = false;
+
+    private long received;
+    private long delivered;
+    private long dropped;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            onTick();
+        }
+    };
+
+    // valueSize is the longest value expected, MTU - 3
+    NotificationSubscription(CallbackContext callbackContext, int valueSize, JSONObject options) throws JSONException {
+        if (options == null) {
+            options = new JSONObject();
+        }
+        this.callbackContext = callbackContext;
+        this.batcher = NotificationBatcher.fromJSON(callbackContext, options);
+
+        String name = options.optString("backpressure", POLICIES[NONE]);
+        int policy = -1;
+        for (int i = 0; i < POLICIES.length; i++) {
+            if (POLICIES[i].equals(name)) {
+                policy = i;
+            }
+        }
+        if (policy < 0) {
+            throw new JSONException("Invalid backpressure policy " + name);
+        }
+        this.policy = policy;
+        this.interval = Math.max(1, options.optLong("interval", DEFAULT_INTERVAL));
+        this.decimation = Math.max(1, options.optInt("decimation", 1));
+        this.bufferSize = Math.max(1, options.optInt("bufferSize", DEFAULT_BUFFER_SIZE));
+
+        if (policy == CONFLATE) {
+            ring = new NotificationRing(1, valueSize);
+        } else if (policy == DROP_OLDEST || policy == DROP_NEWEST) {
+            ring = new NotificationRing(bufferSize, valueSize);
+        } else {
+            ring = null;
+        }
+    }
+
+    CallbackContext getCallbackContext() {
+        return callbackContext;
+    }
+
+    synchronized void onNotification(byte[] value) {
+        if (closed) {
+            return;
+        }
+        if (value == null) {
+            value = EMPTY;
+        }
+        double timestamp = EPOCH_OFFSET + SystemClock.elapsedRealtimeNanos() / 1e6;
+        received++;
+
+        if (policy == NONE) {
+            deliver(value, timestamp);
+        } else if (policy == DECIMATE) {
+            if ((received - 1) % decimation == 0) {
+                deliver(value, timestamp);
+            } else {
+                dropped++;
+            }
+        } else if (ring.isEmpty() && SystemClock.elapsedRealtime() - lastSent >= interval) {
+            deliver(value, timestamp);
+        } else {
+            if (ring.isFull()) {
+                dropped++;
+                if (policy == DROP_NEWEST) {
+                    return;
+                }
+                // conflate replaces its only value
+                ring.removeOldest();
+            }
+            ring.add(value, timestamp);
+            scheduleTick();
+        }
+    }
+
+    private synchronized void onTick() {
+        tickScheduled = false;
+        if (closed) {
+            return;
+        }
+
+        if (batcher != null) {
+            while (!ring.isEmpty()) {
+                deliverOldest();
+            }
+        } else if (!ring.isEmpty()) {
+            deliverOldest();
+        }
+
+        if (!ring.isEmpty()) {
+            scheduleTick();
+        }
+    }
+
+    // send the oldest value of the ring, a batch copies it straight from the ring
+    private void deliverOldest() {
+        byte[] array = ring.array();
+        int offset = ring.oldestOffset();
+        int length = ring.oldestLength();
+        double timestamp = ring.oldestTimestamp();
+
+        if (batcher != null) {
+            delivered++;
+            lastSent = SystemClock.elapsedRealtime();
+            batcher.add(array, offset, length, timestamp);
+        } else {
+            deliver(Arrays.copyOfRange(array, offset, offset + length), timestamp);
+        }
+        ring.removeOldest();
+    }
+
+    private void scheduleTick() {
+        if (!tickScheduled) {
+            tickScheduled = true;
+            long delay = Math.max(0, lastSent + interval - SystemClock.elapsedRealtime());
+            handler.postDelayed(tick, delay);
+        }
+    }
+
+    private void deliver(byte[] value, double timestamp) {
+        delivered++;
+        lastSent = SystemClock.elapsedRealtime();
+        if (batcher != null) {
+            batcher.add(value, timestamp);
+        } else {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, value);
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+        }
+    }
+
+    // stop delivering, values waiting for the next interval are dropped, a batch is sent
+    void close() {
+        handler.removeCallbacks(tick);
+        synchronized (this) {
+            closed = true;
+            if (ring != null) {
+                dropped += ring.size();
+                ring.clear();
+            }
+        }
+        if (batcher != null) {
+            batcher.close();
+        }
+    }
+
+    synchronized JSONObject stats() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("backpressure", POLICIES[policy]);
+        json.put("received", received);
+        json.put("delivered", delivered);
+        json.put("dropped", dropped);
+        json.put("buffered", ring == null ? 0 : ring.size());
+        return json;
+    }
+}
@@ -0,0 +1,40 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.apache.cordova.CallbackContext;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.UUID;
+
+/**
+ * startNotification, with the subscription that delivers the notifications once it is registered.
+ */
+class NotifyCommand extends BLECommand {
+
+    private final NotificationSubscription subscription;
+
+    NotifyCommand(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int mtu, JSONObject options) throws JSONException {
+        super(callbackContext, serviceUUID, characteristicUUID, REGISTER_NOTIFY);
+        // a notification carries at most MTU - 3 bytes
+        int valueSize = mtu - WriteTransfer.ATT_WRITE_OVERHEAD;
+        subscription = new NotificationSubscription(callbackContext, valueSize, options);
+    }
+
+    NotificationSubscription getSubscription() {
+        return subscription;
+    }
+}
@@ -18,8 +18,10 @@ import android.app.Activity;
 
 import android.bluetooth.*;
 import android.util.Base64;
+import android.util.SparseArray;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.LOG;
@@ -29,35 +31,148 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Peripheral wraps the BluetoothDevice and provides methods to convert to JSON.
  */
 public class Peripheral extends BluetoothGattCallback {
 
+    // notified about the outcome of a connection attempt, see ConnectionScheduler
+    interface ConnectionListener {
+        // services were discovered, json is sent to the connect callback after this returns
+        void onConnected(Peripheral peripheral, JSONObject json);
+
+        // return true if the attempt will be retried, the error is then not sent to the callback
+        boolean onConnectFailed(Peripheral peripheral, CallbackContext callbackContext, String message);
+
+        // disconnect() was called during the attempt
+        void onConnectCancelled(Peripheral peripheral);
+    }
+
     // 0x2902 org.bluetooth.descriptor.gatt.client_characteristic_configuration.xml
     //public final static UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
     public final static UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUIDHelper.uuidFromString("2902");
+    public final static UUID SERVICE_CHANGED_UUID = UUIDHelper.uuidFromString("2A05");
     private static final String TAG = "Peripheral";
 
+    // number of recent advertisements kept per device
+    private static final int ADVERTISING_HISTORY_SIZE = 8;
+
+    // default and largest ATT MTU
+    static final int DEFAULT_MTU = 23;
+    static final int MAX_MTU = 517;
+
+    // backoff when the stack has no room for a write without response, doubled per retry
+    private static final int WRITE_RETRY_DELAY = 5;
+    private static final int MAX_WRITE_RETRIES = 8;
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
     private BluetoothManager bluetoothManager;
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothDevice device;
     private byte[] advertisingData;
     private int advertisingRSSI;
-    private boolean connected = false;
-    private ConcurrentLinkedQueue<BLECommand> commandQueue = new ConcurrentLinkedQueue<BLECommand>();
+    private volatile long lastSeen; // SystemClock.elapsedRealtime() of the last advertisement
+    private final AdvertisingHistory advertisingHistory = new AdvertisingHistory(ADVERTISING_HISTORY_SIZE);
+    private volatile boolean connected = false;
+    private volatile boolean connecting = false;
+    private volatile boolean connectionPending = false; // waiting in the ConnectionScheduler
+    private volatile ProximityTracker proximityTracker;
+    private final CommandQueue commandQueue = new CommandQueue();
     private boolean bleProcessing;
-    private Timer rssiTimer;
+    private BLECommand currentCommand; // running command, its GATT callback completes it
+    private final Runnable commandTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onCommandTimeout();
+        }
+    };
+    private int mtu = DEFAULT_MTU;
+    private int connectMtu = 0; // requested after service discovery, see ConnectOptions.mtu
+    private boolean negotiatingMtu = false;
+    private CallbackContext mtuCallback;
+    // the connection is reported at the default MTU if onMtuChanged doesn't arrive in time
+    private final Runnable connectMtuTimeout = new Runnable() {
+        @Override
+        public void run() {
+            LOG.w(TAG, "requestMtu(" + connectMtu + ") timed out");
+            connectMtuNegotiated(gatt);
+        }
+    };
+
+    private GattCache gattCache; // set when connecting with useGattCache
+    private String reportedHash; // layout sent to the connect callback, see GattIndex.getHash
+    private volatile boolean discovering = false; // commands wait while the services are discovered again
+    private boolean staleLayout = false; // guarded by this, the services changed, discover them once the GATT is idle
+
+    // requested by the app, restored when the throughput boost ends
+    private int connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private int preferredPhy = BluetoothDevice.PHY_LE_1M_MASK;
+    private int preferredPhyOptions = BluetoothDevice.PHY_OPTION_NO_PREFERRED;
+    private CallbackContext phyCallback;
+    private final ThroughputBoost throughputBoost = new ThroughputBoost(this);
+
+    // chunked write in progress, see queueWriteLarge
+    private WriteTransfer transfer;
+    private BluetoothGattCharacteristic transferCharacteristic;
+    private final Runnable transferStep = new Runnable() {
+        @Override
+        public void run() {
+            writeNextChunk();
+        }
+    };
+
+    // writes without response that were handed to the stack before onCharacteristicWrite, see setWriteWithoutResponseWindow
+    // guarded by this, streamedWrites holds the characteristic handles of the writes in flight, oldest first,
+    // streamedTimeouts their timeouts, the oldest write has a deadline like a running command
+    private int writeWindow = 1;
+    private int writesInFlight = 0;
+    private int[] streamedWrites = new int[1];
+    private long[] streamedTimeouts = new long[1];
+    private int streamedHead = 0;
+    private final Runnable streamedWriteTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onStreamedWriteTimeout();
+        }
+    };
+    private int writeRetries = 0;
+    private boolean writeRetryPending = false;
+    private final Runnable writeRetry = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (Peripheral.this) {
+                writeRetryPending = false;
+            }
+            processCommands();
+        }
+    };
+    private static final long RSSI_INTERVAL = 500;
+    private final Runnable rssiTask = new Runnable() {
+        @Override
+        public void run() {
+            BluetoothGatt gatt = Peripheral.this.gatt;
+            if (gatt != null && connected) {
+                gatt.readRemoteRssi();
+                handler.postDelayed(this, RSSI_INTERVAL);
+            }
+        }
+    };
 
     BluetoothGatt gatt;
 
     private CallbackContext connectCallback;
+    private volatile ConnectionListener connectionListener; // set while a connection attempt is in progress
     private CallbackContext readCallback;
     private CallbackContext writeCallback;
 
-    private Map<String, CallbackContext> notificationCallbacks = new HashMap<String, CallbackContext>();
+    // built when the services are discovered, resolves UUIDs and handles to characteristics
+    private volatile GattIndex attributes = GattIndex.EMPTY;
+
+    // subscriptions by characteristic handle, copy on write so notifications are dispatched without locking
+    private volatile SparseArray<NotificationSubscription> subscriptions = new SparseArray<NotificationSubscription>();
+    private final CharacteristicCache characteristicCache = new CharacteristicCache();
 
     public Peripheral(BluetoothManager bluetoothManager, BluetoothAdapter bluetoothAdapter, BluetoothDevice device, int advertisingRSSI, byte[] scanRecord) {
         this.bluetoothManager = bluetoothManager;
@@ -65,7 +180,8 @@ public class Peripheral extends BluetoothGattCallback {
         this.device = device;
         this.advertisingRSSI = advertisingRSSI;
         this.advertisingData = scanRecord;
-
+        this.lastSeen = SystemClock.elapsedRealtime();
+        advertisingHistory.add(scanRecord, advertisingRSSI, lastSeen);
     }
     
     protected void runOnUiThread(Runnable runnable) {
@@ -75,9 +191,13 @@ public class Peripheral extends BluetoothGattCallback {
 
     protected boolean disconnected = false;
 
-    public void connect(final CallbackContext callbackContext, final Activity activity) {
+    public void connect(final CallbackContext callbackContext, final Activity activity, ConnectOptions options, ConnectionListener listener) {
         final BluetoothDevice device = getDevice();
         connectCallback = callbackContext;
+        connectMtu = options.mtu;
+        gattCache = options.useGattCache ? GattCache.forContext(activity) : null;
+        connectionListener = listener;
+        connecting = true;
 
         final Peripheral peripheral = this;
         runOnUiThread(new Runnable() {   
@@ -110,15 +230,41 @@ public class Peripheral extends BluetoothGattCallback {
         return false;
     }
 
+    // give up on the current connection attempt, the listener decides if it is retried
+    public void abortConnect(String message) {
+        ConnectionListener listener = connectionListener;
+        if (listener == null) {
+            return;
+        }
+        CallbackContext callback = connectCallback;
+        connectionListener = null;
+        disconnect();
+        connectFailed(listener, callback, message);
+    }
+
+    // report a failed connection attempt or a dropped connection, call after cleaning up so a retry starts fresh
+    private void connectFailed(ConnectionListener listener, CallbackContext callback, String message) {
+        if (listener != null && listener.onConnectFailed(this, callback, message)) {
+            return;
+        }
+        if (callback != null) {
+            callback.error(message);
+        }
+    }
+
     public void disconnect() {
         disconnected = true;
+        connecting = false;
         connectCallback = null;
+
+        ConnectionListener listener = connectionListener;
+        connectionListener = null;
+        if (listener != null) {
+            listener.onConnectCancelled(this);
+        }
         
         // quit checking remote rssi
-        if (rssiTimer != null) {
-            rssiTimer.cancel();
-            rssiTimer = null;
-        }
+        handler.removeCallbacks(rssiTask);
 
         connected = false;        
         
@@ -152,11 +298,54 @@ public class Peripheral extends BluetoothGattCallback {
             connectCallback = null;            
         }
         
-        // remove the notification callback
-        notificationCallbacks.clear();
+        // remove the notification callback, batched notifications that arrived are still delivered
+        closeSubscriptions();
+        characteristicCache.clear();
+        attributes = GattIndex.EMPTY;
+        reportedHash = null;
+        discovering = false;
+        synchronized (this) {
+            staleLayout = false;
+        }
         
         // when the above issue happens, make sure we aren't stuck in bleProcessing = true
         bleProcessing = false; 
+        currentCommand = null;
+        handler.removeCallbacks(commandTimeout);
+
+        // onCharacteristicWrite won't be called for writes in flight either
+        synchronized (this) {
+            writesInFlight = 0;
+            streamedHead = 0;
+            writeRetries = 0;
+            writeRetryPending = false;
+        }
+        handler.removeCallbacks(writeRetry);
+        handler.removeCallbacks(streamedWriteTimeout);
+
+        mtu = DEFAULT_MTU;
+        negotiatingMtu = false;
+        handler.removeCallbacks(connectMtuTimeout);
+        if (mtuCallback != null) {
+            mtuCallback.error("disconnected");
+            mtuCallback = null;
+        }
+
+        connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        preferredPhy = BluetoothDevice.PHY_LE_1M_MASK;
+        preferredPhyOptions = BluetoothDevice.PHY_OPTION_NO_PREFERRED;
+        if (phyCallback != null) {
+            phyCallback.error("disconnected");
+            phyCallback = null;
+        }
+        throughputBoost.reset();
+
+        if (transfer != null) {
+            transfer.getCallbackContext().error("disconnected");
+            transfer = null;
+            transferCharacteristic = null;
+            handler.removeCallbacks(transferStep);
+        }
         
         // consume any outstanding commands, since we were disconnected
         processCommands();
@@ -186,6 +375,7 @@ public class Peripheral extends BluetoothGattCallback {
         try {
             JSONArray servicesArray = new JSONArray();
             JSONArray characteristicsArray = new JSONArray();
+            json.put("mtu", mtu);
             json.put("services", servicesArray);
             json.put("characteristics", characteristicsArray);
 
@@ -199,7 +389,7 @@ public class Peripheral extends BluetoothGattCallback {
 
                         characteristicsJSON.put("service", UUIDHelper.uuidToString(service.getUuid()));
                         characteristicsJSON.put("characteristic", UUIDHelper.uuidToString(characteristic.getUuid()));
-                        //characteristicsJSON.put("instanceId", characteristic.getInstanceId());
+                        characteristicsJSON.put("handle", attributes.handle(characteristic));
 
                         characteristicsJSON.put("properties", Helper.decodeProperties(characteristic));
                             // characteristicsJSON.put("propertiesValue", characteristic.getProperties());
@@ -246,6 +436,15 @@ public class Peripheral extends BluetoothGattCallback {
         return connected;
     }
 
+    // connected, connecting, waiting to connect or still holding a gatt handle
+    public boolean isInUse() {
+        return connected || connecting || connectionPending || gatt != null;
+    }
+
+    void setConnectionPending(boolean pending) {
+        connectionPending = pending;
+    }
+
     public BluetoothDevice getDevice() {
         if (disconnected) {
             BluetoothDevice newDevice = bluetoothAdapter.getRemoteDevice(device.getAddress());
@@ -264,40 +463,206 @@ public class Peripheral extends BluetoothGattCallback {
         super.onServicesDiscovered(gatt, status);
 
         if (status == BluetoothGatt.GATT_SUCCESS) {
-            LOG.d(TAG, "Discovered Services");
-            PluginResult result = new PluginResult(PluginResult.Status.OK, this.asJSONObject(gatt));
+            attributes = GattIndex.build(gatt.getServices());
+            LOG.d(TAG, "Discovered Services, " + attributes.size() + " characteristics");
+            saveLayout(gatt);
+
+            // connected already, answered from the GattCache or the services changed
+            if (discovering && reportedHash != null) {
+                discovering = false;
+                layoutDiscovered(gatt);
+                processCommands();
+                return;
+            }
+
+            // during a connection attempt, hold the queue and report the connection once the MTU is negotiated
+            if (connectMtu > DEFAULT_MTU && android.os.Build.VERSION.SDK_INT >= 21 && connectionListener != null && !negotiatingMtu) {
+                negotiatingMtu = true;
+                bleProcessing = true;
+                if (gatt.requestMtu(connectMtu)) {
+                    if (CommandTimeouts.mtu > 0) {
+                        handler.postDelayed(connectMtuTimeout, CommandTimeouts.mtu);
+                    }
+                    return;
+                }
+                LOG.w(TAG, "requestMtu(" + connectMtu + ") failed");
+                negotiatingMtu = false;
+                bleProcessing = false;
+            }
+
+            connectionReady(gatt);
+
+        } else if (reportedHash != null) {
+            // the connection was reported already, keep it with the layout known so far
+            LOG.e(TAG, "Service discovery failed after connecting. status = " + status);
+            discovering = false;
+            processCommands();
+        } else {
+            LOG.e(TAG, "Service discovery failed. status = " + status);
+            CallbackContext callback = connectCallback;
+            ConnectionListener listener = connectionListener;
+            connectionListener = null;
+            disconnect();
+            connectFailed(listener, callback, "Service discovery failed. status = " + status);
+        }
+    }
+
+    // services are discovered, send the peripheral to the connect callback and start reading the RSSI
+    private void connectionReady(final BluetoothGatt gatt) {
+        reportedHash = attributes.getHash();
+        connectionReady(this.asJSONObject(gatt));
+    }
+
+    private void connectionReady(JSONObject json) {
+        ConnectionListener listener = connectionListener;
+        connectionListener = null;
+        if (listener != null) {
+            listener.onConnected(this, json);
+        }
+        if (connectCallback != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, json);
             result.setKeepCallback(true);
             connectCallback.sendPluginResult(result);
-            
-            try {
-                TimerTask task = new TimerTask()
-                {
-                    @Override
-                    public void run()
-                    {
-                        gatt.readRemoteRssi();
-                    }
-                };
+        }
+        
+        // read the remote rssi on the shared handler
+        handler.removeCallbacks(rssiTask);
+        handler.post(rssiTask);
+    }
+
+    /**
+     * Answer the connect with the layout persisted by an earlier connection, while the services are
+     * discovered. Commands wait for the discovery, which confirms the layout or reports the new one.
+     * A connect that negotiates the MTU waits for discovery, the result reports the MTU.
+     */
+    private void connectFromCache() {
+        if (gattCache == null || connectionListener == null || connectMtu > DEFAULT_MTU) {
+            return;
+        }
+        JSONObject entry = gattCache.get(getAddress());
+        if (entry == null) {
+            return;
+        }
+
+        JSONObject json = asJSONObject();
+        try {
+            json.put("mtu", mtu);
+            json.put("services", entry.get("services"));
+            json.put("characteristics", entry.get("characteristics"));
+            json.put("cached", true);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+            return;
+        }
+
+        LOG.d(TAG, "Connected from the GATT cache");
+        discovering = true;
+        reportedHash = entry.optString("hash");
+        connectionReady(json);
+    }
 
-                if (rssiTimer != null) {
-                    rssiTimer.cancel();
-                }              
-                  
-                rssiTimer = new Timer();
-                rssiTimer.schedule(task, 0, 500);
+    // the services were discovered after the connect was answered
+    private void layoutDiscovered(BluetoothGatt gatt) {
+        if (attributes.getHash().equals(reportedHash)) {
+            return;
+        }
+        LOG.w(TAG, "GATT layout changed");
+        reportedHash = attributes.getHash();
+
+        // handles queued against the reported layout may address a different characteristic now
+        for (BLECommand command : commandQueue.removeUnresolved()) {
+            command.getCallbackContext().error("Characteristic handle " + command.getHandle() + " changed.");
+        }
+
+        // with useGattCache the success callback gets the new layout
+        if (gattCache != null && connectCallback != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, asJSONObject(gatt));
+            result.setKeepCallback(true);
+            connectCallback.sendPluginResult(result);
+        }
+    }
+
+    // persist the discovered layout if it differs from the saved one
+    private void saveLayout(BluetoothGatt gatt) {
+        if (gattCache == null) {
+            return;
+        }
+        JSONObject entry = gattCache.get(getAddress());
+        if (entry == null || !attributes.getHash().equals(entry.optString("hash"))) {
+            gattCache.put(getAddress(), attributes.getHash(), asJSONObject(gatt));
+        }
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        super.onPhyUpdate(gatt, txPhy, rxPhy, status);
+        LOG.d(TAG, "onPhyUpdate tx=" + txPhy + " rx=" + rxPhy + " status=" + status);
+
+        if (phyCallback != null) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                JSONObject json = new JSONObject();
+                try {
+                    json.put("txPhy", phyName(txPhy));
+                    json.put("rxPhy", phyName(rxPhy));
+                } catch (JSONException e) { // this shouldn't happen
+                    e.printStackTrace();
+                }
+                phyCallback.success(json);
+            } else {
+                phyCallback.error("Set preferred PHY failed status=" + status);
             }
-            catch(Exception e) {
-                LOG.e(TAG, "Exception setting up RSSI task: " + e.toString());
+            phyCallback = null;
+            commandCompleted();
+        }
+    }
+
+    private static String phyName(int phy) {
+        switch (phy) {
+            case BluetoothDevice.PHY_LE_2M:
+                return "2m";
+            case BluetoothDevice.PHY_LE_CODED:
+                return "coded";
+            default:
+                return "1m";
+        }
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        super.onMtuChanged(gatt, mtu, status);
+        LOG.d(TAG, "onMtuChanged " + mtu + " status=" + status);
+
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.mtu = mtu;
+        }
+
+        if (negotiatingMtu) {
+            connectMtuNegotiated(gatt);
+        } else if (mtuCallback != null) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mtuCallback.success(mtu);
+            } else {
+                mtuCallback.error("Request MTU failed status=" + status);
             }
-            
-        } else {
-            if (connectCallback != null) {
-                LOG.e(TAG, "Service discovery failed. status = " + status);
-                connectCallback.error("Service discovery failed. status = " + status);
-                connectCallback = null;
+            mtuCallback = null;
+            commandCompleted();
+        }
+    }
+
+    // the MTU requested by the connect was answered or timed out
+    private void connectMtuNegotiated(BluetoothGatt gatt) {
+        synchronized (this) {
+            if (!negotiatingMtu) {
+                return;
             }
-            disconnect();
+            negotiatingMtu = false;
+            bleProcessing = false;
         }
+        handler.removeCallbacks(connectMtuTimeout);
+        if (gatt != null) {
+            connectionReady(gatt);
+        }
+        processCommands();
     }
 
     @Override
@@ -309,29 +674,37 @@ public class Peripheral extends BluetoothGattCallback {
         if (newState == BluetoothGatt.STATE_CONNECTED) {
             LOG.d(TAG, "connected");
             connected = true;
+            connecting = false;
             final Peripheral peripheral = this;
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {         
                 
+                    peripheral.connectFromCache();
                     boolean success = gatt.discoverServices();
                     if (!success) {
                         LOG.e(TAG, "discoverServices() failed");
-                        if (peripheral.connectCallback != null) {
-                            peripheral.connectCallback.error("Service discovery failed");
-                            peripheral.connectCallback = null;
-                        }
+                        CallbackContext callback = peripheral.connectCallback;
+                        ConnectionListener listener = peripheral.connectionListener;
+                        peripheral.connectionListener = null;
                         peripheral.disconnect();
+                        peripheral.connectFailed(listener, callback, "Service discovery failed");
                     }
                 }
             });
 
         } else {
             LOG.d(TAG, "disconnected");
-            if (connectCallback != null) {
-                connectCallback.error("Disconnected");
-                connectCallback = null;
+
+            // late callback for the gatt of an earlier attempt
+            if (this.gatt != null && gatt != this.gatt) {
+                gatt.close();
+                return;
             }
+
+            CallbackContext callback = connectCallback;
+            ConnectionListener listener = connectionListener;
+            connectionListener = null;
             
             // make sure disconnect() doesn't call gatt.disconnect()
             connected = false;
@@ -342,6 +715,8 @@ public class Peripheral extends BluetoothGattCallback {
             // close the handle
             gatt.close();
             this.gatt = null;           
+
+            connectFailed(listener, callback, "Disconnected");
         }
 
     }
@@ -350,7 +725,11 @@ public class Peripheral extends BluetoothGattCallback {
     public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
         if (status == BluetoothGatt.GATT_SUCCESS) {
             LOG.d(TAG, String.format("BluetoothGatt ReadRssi[%d]", rssi));
-            if (connectCallback != null) {
+            ProximityTracker tracker = proximityTracker;
+            if (tracker != null) {
+                // the tracker reports the smoothed value instead
+                tracker.addSample(rssi);
+            } else if (connectCallback != null) {
                 PluginResult result = new PluginResult(PluginResult.Status.OK, rssi);
                 result.setKeepCallback(true);
                 connectCallback.sendPluginResult(result);                
@@ -361,19 +740,56 @@ public class Peripheral extends BluetoothGattCallback {
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
         super.onCharacteristicChanged(gatt, characteristic);
-        LOG.d(TAG, "onCharacteristicChanged " + characteristic);
+        throughputBoost.onNotification();
 
-        CallbackContext callback = notificationCallbacks.get(generateHashKey(characteristic));
+        int handle = attributes.handle(characteristic);
+        if (SERVICE_CHANGED_UUID.equals(characteristic.getUuid())) {
+            onServiceChanged(gatt);
+        } else if (handle != GattIndex.NO_HANDLE) {
+            characteristicCache.put(handle, characteristic.getValue());
+        }
 
-        if (callback != null) {
-            PluginResult result = new PluginResult(PluginResult.Status.OK, characteristic.getValue());
-            result.setKeepCallback(true);
-            callback.sendPluginResult(result);
+        NotificationSubscription subscription = subscriptions.get(handle);
+        if (subscription != null) {
+            subscription.onNotification(characteristic.getValue());
+        }
+    }
+
+    // the attribute handles may have changed, cached values no longer identify their characteristic
+    @Override
+    public void onServiceChanged(BluetoothGatt gatt) {
+        LOG.d(TAG, "onServiceChanged");
+        characteristicCache.clear();
+        if (gattCache != null) {
+            gattCache.remove(getAddress());
+        }
+
+        // rebuild the attribute index once the running command is done, unless the discovery of the connection is still running
+        synchronized (this) {
+            if (reportedHash != null && !discovering) {
+                staleLayout = true;
+            }
+        }
+        processCommands();
+    }
+
+    // called from processCommands with the lock held, nothing is in flight
+    private void rediscoverServices() {
+        staleLayout = false;
+        discovering = true;
+        if (gatt == null || !gatt.discoverServices()) {
+            LOG.e(TAG, "discoverServices() failed");
+            discovering = false;
         }
     }
 
     @Override
     public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        if (!isCurrentCommand(characteristic)) {
+            LOG.w(TAG, "Ignoring late onCharacteristicRead " + characteristic.getUuid());
+            return;
+        }
+
         try {
             super.onCharacteristicRead(gatt, characteristic, status);
             LOG.d(TAG, "onCharacteristicRead " + characteristic);
@@ -381,6 +797,7 @@ public class Peripheral extends BluetoothGattCallback {
             if (readCallback != null) {
     
                 if (status == BluetoothGatt.GATT_SUCCESS) {
+                    characteristicCache.put(attributes.handle(characteristic), characteristic.getValue());
                     readCallback.success(characteristic.getValue());
                 } else {
                     readCallback.error("Error reading " + characteristic.getUuid() + " status=" + status);
@@ -396,6 +813,25 @@ public class Peripheral extends BluetoothGattCallback {
 
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        if (completeStreamedWrite(characteristic)) {
+            // a streamed write without response, its callback was called when the stack accepted it
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                LOG.w(TAG, "Write without response to " + characteristic.getUuid() + " failed status=" + status);
+            }
+            processCommands();
+            return;
+        }
+
+        if (!isCurrentCommand(characteristic)) {
+            LOG.w(TAG, "Ignoring late onCharacteristicWrite " + characteristic.getUuid());
+            return;
+        }
+
+        if (transfer != null) {
+            onTransferWrite(status);
+            return;
+        }
+
         try {
             super.onCharacteristicWrite(gatt, characteristic, status);
             LOG.d(TAG, "onCharacteristicWrite " + characteristic);
@@ -417,27 +853,113 @@ public class Peripheral extends BluetoothGattCallback {
 
     @Override
     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        if (!isCurrentCommand(descriptor.getCharacteristic())) {
+            LOG.w(TAG, "Ignoring late onDescriptorWrite " + descriptor.getUuid());
+            return;
+        }
+
         try {
             super.onDescriptorWrite(gatt, descriptor, status);
             LOG.d(TAG, "onDescriptorWrite " + descriptor);
-            
-            CallbackContext context = notificationCallbacks.get(generateHashKey(descriptor.getCharacteristic()));
-            if (context != null) {
-                PluginResult result = new PluginResult(PluginResult.Status.ERROR, 0); // falsy means success
-                result.setKeepCallback(true);
-                context.sendPluginResult(result);
+
+            BLECommand command = currentCommand;
+            int handle = attributes.handle(descriptor.getCharacteristic());
+            if (command.getType() == BLECommand.REGISTER_NOTIFY) {
+                NotificationSubscription subscription = subscriptions.get(handle);
+                if (subscription != null) {
+                    PluginResult result = new PluginResult(PluginResult.Status.ERROR, 0); // falsy means success
+                    result.setKeepCallback(true);
+                    subscription.getCallbackContext().sendPluginResult(result);
+                }
+            } else if (status == BluetoothGatt.GATT_SUCCESS) {
+                if (command.getType() == BLECommand.REMOVE_NOTIFY) {
+                    NotificationSubscription subscription = putSubscription(handle, null);
+                    if (subscription != null) {
+                        subscription.close();
+                    }
+                }
+                command.getCallbackContext().success();
+            } else {
+                command.getCallbackContext().error("Error writing descriptor " + descriptor.getUuid() + " status=" + status);
             }
         } finally {
             commandCompleted();
         }
     }
 
-    public void updateRssi(int rssi) {
+    @Override
+    public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        if (!isCurrentCommand(descriptor.getCharacteristic())) {
+            LOG.w(TAG, "Ignoring late onDescriptorRead " + descriptor.getUuid());
+            return;
+        }
+
+        try {
+            super.onDescriptorRead(gatt, descriptor, status);
+            LOG.d(TAG, "onDescriptorRead " + descriptor);
+
+            CallbackContext callbackContext = currentCommand.getCallbackContext();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                callbackContext.success(descriptor.getValue());
+            } else {
+                callbackContext.error("Error reading descriptor " + descriptor.getUuid() + " status=" + status);
+            }
+        } finally {
+            commandCompleted();
+        }
+    }
+
+    // update in place from a new advertisement, keeps the connection state, command queue and callbacks
+    public void update(int rssi, byte[] scanRecord) {
         advertisingRSSI = rssi;
+        advertisingData = scanRecord;
+        lastSeen = SystemClock.elapsedRealtime();
+        advertisingHistory.add(scanRecord, rssi, lastSeen);
+
+        ProximityTracker tracker = proximityTracker;
+        if (tracker != null) {
+            tracker.addSample(rssi, scanRecord);
+        }
+    }
+
+    void setProximityTracker(ProximityTracker tracker) {
+        proximityTracker = tracker;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    // wall clock time of the last advertisement in ms since epoch
+    public long getLastSeenTime() {
+        return System.currentTimeMillis() - (SystemClock.elapsedRealtime() - lastSeen);
+    }
+
+    public String getAddress() {
+        return device.getAddress();
+    }
+
+    public byte[] getAdvertisingData() {
+        return advertisingData;
+    }
+
+    public int getAdvertisingRSSI() {
+        return advertisingRSSI;
+    }
+
+    public JSONArray getAdvertisingHistory() throws JSONException {
+        return advertisingHistory.toJSON();
     }
 
     // This seems way too complicated
-    private void registerNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
+    // REGISTER_NOTIFY and ENABLE_NOTIFY enable notifications, REMOVE_NOTIFY disables them
+    private void registerNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int handle, int type) {
+        registerNotifyCallback(callbackContext, serviceUUID, characteristicUUID, handle, type, null);
+    }
+
+    // the subscription, if any, delivers the notifications to the callback of a REGISTER_NOTIFY
+    private void registerNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int handle, int type, NotificationSubscription subscription) {
+        boolean enable = type != BLECommand.REMOVE_NOTIFY;
         boolean success = false;
         try {
     
@@ -446,27 +968,33 @@ public class Peripheral extends BluetoothGattCallback {
                 return; // note: this will call commandCompleted()
             }
     
-            BluetoothGattService service = gatt.getService(serviceUUID);
-            if (service == null) {
+            GattIndex attributes = this.attributes;
+            if (!attributes.hasService(serviceUUID)) {
                 callbackContext.error("register notify failed, service not found " + serviceUUID);
                 return; // note: commandCompleted() will still get called
             }
 
-            BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUUID);
-            String key = generateHashKey(serviceUUID, characteristic);
+            BluetoothGattCharacteristic characteristic = attributes.characteristic(serviceUUID, characteristicUUID, handle);
     
             if (characteristic != null) {
     
-                notificationCallbacks.put(key, callbackContext);
+                if (type == BLECommand.REGISTER_NOTIFY) {
+                    NotificationSubscription previous = putSubscription(attributes.handle(characteristic), subscription);
+                    if (previous != null) {
+                        previous.close();
+                    }
+                }
     
-                if (gatt.setCharacteristicNotification(characteristic, true)) {
+                if (gatt.setCharacteristicNotification(characteristic, enable)) {
     
                     // Why doesn't setCharacteristicNotification write the descriptor?
                     BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID);
                     if (descriptor != null) {
     
                         // prefer notify over indicate
-                        if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+                        if (!enable) {
+                            descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                        } else if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
                             descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
                         } else if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
                             descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
@@ -498,7 +1026,57 @@ public class Peripheral extends BluetoothGattCallback {
         }
     }
 
-    private void readCharacteristic(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
+    // the descriptor, or null after reporting the error
+    private BluetoothGattDescriptor findDescriptor(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int handle, UUID descriptorUUID) {
+        if (gatt == null) {
+            callbackContext.error("BluetoothGatt is null");
+            return null;
+        }
+
+        GattIndex attributes = this.attributes;
+        if (!attributes.hasService(serviceUUID)) {
+            callbackContext.error("Service " + serviceUUID + " not found.");
+            return null;
+        }
+
+        BluetoothGattCharacteristic characteristic = attributes.characteristic(serviceUUID, characteristicUUID, handle);
+        if (characteristic == null) {
+            callbackContext.error("Characteristic " + characteristicUUID + " not found.");
+            return null;
+        }
+
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(descriptorUUID);
+        if (descriptor == null) {
+            callbackContext.error("Descriptor " + descriptorUUID + " not found.");
+        }
+        return descriptor;
+    }
+
+    private void readDescriptor(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int handle, UUID descriptorUUID) {
+        BluetoothGattDescriptor descriptor = findDescriptor(callbackContext, serviceUUID, characteristicUUID, handle, descriptorUUID);
+        if (descriptor == null) {
+            commandCompleted();
+        } else if (!gatt.readDescriptor(descriptor)) {
+            callbackContext.error("Read descriptor failed");
+            commandCompleted();
+        }
+    }
+
+    private void writeDescriptor(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int handle, UUID descriptorUUID, byte[] data) {
+        BluetoothGattDescriptor descriptor = findDescriptor(callbackContext, serviceUUID, characteristicUUID, handle, descriptorUUID);
+        if (descriptor == null) {
+            commandCompleted();
+            return;
+        }
+
+        descriptor.setValue(data);
+        if (!gatt.writeDescriptor(descriptor)) {
+            callbackContext.error("Write descriptor failed");
+            commandCompleted();
+        }
+    }
+
+    private void readCharacteristic(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int handle) {
 
         boolean success = false;
         try {
@@ -507,12 +1085,12 @@ public class Peripheral extends BluetoothGattCallback {
                 return; // note: commandCompleted() will still get called
             }
     
-            BluetoothGattService service = gatt.getService(serviceUUID);
-            if (service == null) {
+            GattIndex attributes = this.attributes;
+            if (!attributes.hasService(serviceUUID)) {
                 callbackContext.error("read characteristic failed, service not found " + serviceUUID);
                 return; // note: commandCompleted() will still get called
             }            
-            BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUUID);
+            BluetoothGattCharacteristic characteristic = attributes.characteristic(serviceUUID, characteristicUUID, handle);
     
             if (characteristic == null) {
                 callbackContext.error("Characteristic " + characteristicUUID + " not found.");
@@ -533,26 +1111,34 @@ public class Peripheral extends BluetoothGattCallback {
 
     }
 
-    private void writeCharacteristic(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, byte[] data, int writeType) {
+    // the characteristic for a write, or null after reporting the error to the callback
+    private BluetoothGattCharacteristic findWritableCharacteristic(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int handle) {
+        if (gatt == null) {
+            callbackContext.error("BluetoothGatt is null");
+            return null;
+        }
+
+        GattIndex attributes = this.attributes;
+        if (!attributes.hasService(serviceUUID)) {
+            callbackContext.error("Write failed: service " + serviceUUID + " not found.");
+            return null;
+        }
+
+        BluetoothGattCharacteristic characteristic = attributes.characteristic(serviceUUID, characteristicUUID, handle);
+        if (characteristic == null) {
+            callbackContext.error("Characteristic " + characteristicUUID + " not found.");
+        }
+        return characteristic;
+    }
+
+    private void writeCharacteristic(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int handle, byte[] data, int writeType) {
 
         boolean success = false;
         try {
     
-            if (gatt == null) {
-                callbackContext.error("BluetoothGatt is null");
-                return; // note: commandCompleted() will still get called
-            }
-    
-            BluetoothGattService service = gatt.getService(serviceUUID);
-            if (service == null) {
-                callbackContext.error("Write failed: service " + serviceUUID + " not found.");
-                return; // note: commandCompleted() will still get called
-            }
-            BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUUID);
+            BluetoothGattCharacteristic characteristic = findWritableCharacteristic(callbackContext, serviceUUID, characteristicUUID, handle);
     
-            if (characteristic == null) {
-                callbackContext.error("Characteristic " + characteristicUUID + " not found.");
-            } else {
+            if (characteristic != null) {
                 if (characteristic.setValue(data)) {
                     characteristic.setWriteType(writeType);
                     writeCallback = callbackContext;
@@ -577,82 +1163,600 @@ public class Peripheral extends BluetoothGattCallback {
 
     }
 
-    public void queueRead(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
+    /**
+     * Keep up to window writes without response in flight. The callback of a streamed write is
+     * called as soon as the Bluetooth stack accepts the packet instead of after onCharacteristicWrite,
+     * and a write the stack has no room for is retried with a backoff instead of failing.
+     * 1 restores the default of one write per onCharacteristicWrite.
+     * BluetoothGatt refuses a write until the previous one is confirmed, so the stack rarely holds
+     * more than one streamed write, the window bounds how many callbacks run ahead of the confirmations.
+     */
+    public synchronized void setWriteWithoutResponseWindow(int window) {
+        writeWindow = Math.max(1, window);
+    }
+
+    // called with the lock held when the stack accepted a streamed write
+    private void addStreamedWrite(int handle, long timeout) {
+        if (writesInFlight == streamedWrites.length) {
+            int[] grown = new int[streamedWrites.length * 2];
+            long[] grownTimeouts = new long[grown.length];
+            for (int i = 0; i < writesInFlight; i++) {
+                int slot = (streamedHead + i) % streamedWrites.length;
+                grown[i] = streamedWrites[slot];
+                grownTimeouts[i] = streamedTimeouts[slot];
+            }
+            streamedWrites = grown;
+            streamedTimeouts = grownTimeouts;
+            streamedHead = 0;
+        }
+        int slot = (streamedHead + writesInFlight) % streamedWrites.length;
+        streamedWrites[slot] = handle;
+        streamedTimeouts[slot] = timeout;
+        writesInFlight++;
+        if (writesInFlight == 1) {
+            armStreamedWriteTimeout();
+        }
+    }
+
+    // true if the callback confirms the oldest streamed write, other callbacks belong to the current command
+    private synchronized boolean completeStreamedWrite(BluetoothGattCharacteristic characteristic) {
+        if (writesInFlight == 0 || streamedWrites[streamedHead] != attributes.handle(characteristic)) {
+            return false;
+        }
+        streamedHead = (streamedHead + 1) % streamedWrites.length;
+        writesInFlight--;
+        armStreamedWriteTimeout();
+        return true;
+    }
+
+    // called with the lock held, the deadline follows the oldest write in flight
+    private void armStreamedWriteTimeout() {
+        handler.removeCallbacks(streamedWriteTimeout);
+        if (writesInFlight > 0 && streamedTimeouts[streamedHead] > 0) {
+            handler.postDelayed(streamedWriteTimeout, streamedTimeouts[streamedHead]);
+        }
+    }
+
+    // a confirmation was lost, the stack won't confirm the later writes either
+    private void onStreamedWriteTimeout() {
+        synchronized (this) {
+            if (writesInFlight == 0) {
+                return;
+            }
+            LOG.w(TAG, "Streamed write timed out, " + writesInFlight + " writes unconfirmed");
+            writesInFlight = 0;
+            streamedHead = 0;
+        }
+        processCommands();
+    }
+
+    private boolean isStreamedWrite(BLECommand command) {
+        return writeWindow > 1 && command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+    }
+
+    // send writes without response from the head of the queue until the window is full or the stack is busy
+    // called from processCommands with the lock held
+    private void processStreamedWrites() {
+        BLECommand command;
+        while (!writeRetryPending && writesInFlight < writeWindow &&
+                (command = commandQueue.peek()) != null && isStreamedWrite(command)) {
+
+            CallbackContext callbackContext = command.getCallbackContext();
+            if (!resolveHandle(command)) {
+                commandQueue.remove(command);
+                callbackContext.error("Characteristic handle " + command.getHandle() + " not found.");
+                continue;
+            }
+            BluetoothGattCharacteristic characteristic = findWritableCharacteristic(callbackContext, command.getServiceUUID(), command.getCharacteristicUUID(), command.getHandle());
+            if (characteristic == null) {
+                commandQueue.remove(command);
+                continue;
+            }
+
+            characteristic.setValue(command.getData());
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+
+            if (gatt.writeCharacteristic(characteristic)) {
+                commandQueue.remove(command);
+                addStreamedWrite(attributes.handle(characteristic), command.getTimeout());
+                writeRetries = 0;
+                callbackContext.success();
+            } else if (writesInFlight > 0) {
+                // busy with an earlier write, onCharacteristicWrite tries again
+                return;
+            } else if (writeRetries < MAX_WRITE_RETRIES) {
+                writeRetryPending = true;
+                handler.postDelayed(writeRetry, WRITE_RETRY_DELAY << writeRetries++);
+                return;
+            } else {
+                commandQueue.remove(command);
+                writeRetries = 0;
+                callbackContext.error("Write failed");
+            }
+        }
+    }
+
+    private void startTransfer(WriteTransfer command) {
+        BluetoothGattCharacteristic characteristic = findWritableCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getHandle());
+        if (characteristic == null) {
+            commandCompleted();
+            return;
+        }
+
+        command.start(mtu);
+        if (command.isDone()) {
+            command.getCallbackContext().success();
+            commandCompleted();
+            return;
+        }
+
+        transfer = command;
+        transferCharacteristic = characteristic;
+        writeRetries = 0;
+        throughputBoost.transferStarted();
+        writeNextChunk();
+    }
+
+    private void writeNextChunk() {
+        WriteTransfer command = transfer;
+        if (command == null) {
+            return;
+        }
+
+        transferCharacteristic.setValue(command.nextChunk());
+        transferCharacteristic.setWriteType(command.getWriteType());
+
+        if (gatt != null && gatt.writeCharacteristic(transferCharacteristic)) {
+            writeRetries = 0;
+            armWatchdog(command);
+        } else if (gatt != null && writeRetries < MAX_WRITE_RETRIES) {
+            handler.postDelayed(transferStep, WRITE_RETRY_DELAY << writeRetries++);
+        } else {
+            finishTransfer("Write failed at offset " + command.getOffset());
+        }
+    }
+
+    private void onTransferWrite(int status) {
+        WriteTransfer command = transfer;
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            finishTransfer("Write failed at offset " + command.getOffset() + " status=" + status);
+            return;
+        }
+
+        command.advance();
+        if (command.isDone()) {
+            finishTransfer(null);
+        } else if (command.getInterval() > 0) {
+            handler.postDelayed(transferStep, command.getInterval());
+        } else {
+            writeNextChunk();
+        }
+    }
+
+    private void finishTransfer(String error) {
+        WriteTransfer command = transfer;
+        transfer = null;
+        transferCharacteristic = null;
+        throughputBoost.transferFinished();
+
+        if (error == null) {
+            command.getCallbackContext().success();
+        } else {
+            command.getCallbackContext().error(error);
+        }
+        commandCompleted();
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    // CONNECTION_PRIORITY_BALANCED, HIGH or LOW_POWER, Android has no callback for the connection update
+    private void requestConnectionPriority(CallbackContext callbackContext, int priority) {
+        connectionPriority = priority;
+        if (gatt == null) {
+            callbackContext.error("BluetoothGatt is null");
+        } else if (android.os.Build.VERSION.SDK_INT < 21) {
+            callbackContext.error("Connection priority requires Android 5");
+        } else if (gatt.requestConnectionPriority(priority)) {
+            callbackContext.success();
+        } else {
+            callbackContext.error("Request connection priority failed");
+        }
+        commandCompleted();
+    }
+
+    // phyMask is a combination of the BluetoothDevice.PHY_LE_*_MASK values, completes in onPhyUpdate
+    private void setPreferredPhy(CallbackContext callbackContext, int phyMask, int phyOptions) {
+        if (gatt == null) {
+            callbackContext.error("BluetoothGatt is null");
+            commandCompleted();
+        } else if (android.os.Build.VERSION.SDK_INT < 26) {
+            callbackContext.error("Preferred PHY requires Android 8");
+            commandCompleted();
+        } else {
+            preferredPhy = phyMask;
+            preferredPhyOptions = phyOptions;
+            phyCallback = callbackContext;
+            gatt.setPreferredPhy(phyMask, phyMask, phyOptions);
+        }
+    }
+
+    public void setThroughputPolicy(JSONObject options) {
+        throughputBoost.configure(options);
+    }
+
+    // switch to or back from high priority and the 2M PHY, see ThroughputBoost
+    void applyHighThroughput(boolean high) {
+        BluetoothGatt gatt = this.gatt;
+        if (gatt == null || !connected || android.os.Build.VERSION.SDK_INT < 21) {
+            return;
+        }
+        LOG.d(TAG, high ? "High throughput on" : "High throughput off");
+
+        gatt.requestConnectionPriority(high ? BluetoothGatt.CONNECTION_PRIORITY_HIGH : connectionPriority);
+
+        // skip the PHY while the app waits for its own onPhyUpdate
+        if (throughputBoost.usesPhy() && android.os.Build.VERSION.SDK_INT >= 26 && phyCallback == null &&
+                bluetoothAdapter.isLe2MPhySupported()) {
+            int phy = high ? BluetoothDevice.PHY_LE_2M_MASK : preferredPhy;
+            gatt.setPreferredPhy(phy, phy, preferredPhyOptions);
+        }
+    }
+
+    private void requestMtu(CallbackContext callbackContext, int mtu) {
+        if (gatt == null) {
+            callbackContext.error("BluetoothGatt is null");
+            commandCompleted();
+        } else if (android.os.Build.VERSION.SDK_INT < 21) {
+            // the MTU can't be changed before Android 5, report the one we have
+            callbackContext.success(this.mtu);
+            commandCompleted();
+        } else {
+            mtuCallback = callbackContext;
+            if (!gatt.requestMtu(mtu)) {
+                mtuCallback = null;
+                callbackContext.error("Request MTU failed");
+                commandCompleted();
+            }
+        }
+    }
+
+    // options may set the priority lane, override the timeout: {priority, timeout}
+    // handle is GattIndex.NO_HANDLE when the characteristic is addressed by UUID
+    public void queueRead(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int handle, JSONObject options) {
         BLECommand command = new BLECommand(callbackContext, serviceUUID, characteristicUUID, BLECommand.READ);
-        queueCommand(command);
+        command.setHandle(handle);
+        queueCommand(command, options);
     }
 
-    public void queueWrite(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, byte[] data, int writeType) {
+    public void queueWrite(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int handle, byte[] data, int writeType, JSONObject options) {
         BLECommand command = new BLECommand(callbackContext, serviceUUID, characteristicUUID, data, writeType);
+        command.setHandle(handle);
+        queueCommand(command, options);
+    }
+
+    // send the cached value if it is at most maxAge ms old, otherwise queue a read
+    public void queueReadCached(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int handle, long maxAge, JSONObject options) {
+        BluetoothGattCharacteristic characteristic = attributes.characteristic(serviceUUID, characteristicUUID, handle);
+
+        if (characteristic != null) {
+            byte[] value = characteristicCache.get(attributes.handle(characteristic), maxAge);
+            if (value != null) {
+                callbackContext.success(value);
+                return;
+            }
+        }
+        queueRead(callbackContext, serviceUUID, characteristicUUID, handle, options);
+    }
+
+    // received, delivered and dropped counts of every notification subscription
+    public JSONArray getNotificationStats() throws JSONException {
+        SparseArray<NotificationSubscription> subscriptions = this.subscriptions;
+        JSONArray json = new JSONArray();
+        for (int i = 0; i < subscriptions.size(); i++) {
+            JSONObject stats = subscriptions.valueAt(i).stats();
+            BluetoothGattCharacteristic characteristic = attributes.characteristic(subscriptions.keyAt(i));
+            if (characteristic != null) {
+                stats.put("service", UUIDHelper.uuidToString(characteristic.getService().getUuid()));
+                stats.put("characteristic", UUIDHelper.uuidToString(characteristic.getUuid()));
+            }
+            stats.put("handle", subscriptions.keyAt(i));
+            json.put(stats);
+        }
+        return json;
+    }
+
+    public JSONObject getCacheStats() throws JSONException {
+        return characteristicCache.stats();
+    }
+
+    // write data in chunks that fit the MTU as a single command
+    public void queueWriteLarge(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int handle, byte[] data, JSONObject options) {
+        WriteTransfer command = new WriteTransfer(callbackContext, serviceUUID, characteristicUUID, data, options);
+        command.setHandle(handle);
+        command.setPriority(CommandQueue.BULK);
+        queueCommand(command, options);
+    }
+
+    public void queueRequestMtu(CallbackContext callbackContext, int mtu) {
+        queueCommand(new BLECommand(callbackContext, BLECommand.REQUEST_MTU, mtu));
+    }
+
+    public void queueRequestConnectionPriority(CallbackContext callbackContext, int priority) {
+        queueCommand(new BLECommand(callbackContext, BLECommand.REQUEST_CONNECTION_PRIORITY, priority));
+    }
+
+    // the value holds the PHY mask in the low byte and the PHY options in the next byte
+    public void queueSetPreferredPhy(CallbackContext callbackContext, int phyMask, int phyOptions) {
+        queueCommand(new BLECommand(callbackContext, BLECommand.SET_PREFERRED_PHY, phyMask | (phyOptions << 8)));
+    }
+
+    public void queueRegisterNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int handle, JSONObject options) throws JSONException {
+        BLECommand command = new NotifyCommand(callbackContext, serviceUUID, characteristicUUID, mtu, options);
+        command.setHandle(handle);
+        queueCommand(command, options);
+    }
+
+    public void queueRemoveNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int handle) {
+        BLECommand command = new BLECommand(callbackContext, serviceUUID, characteristicUUID, BLECommand.REMOVE_NOTIFY);
+        command.setHandle(handle);
         queueCommand(command);
     }
 
-    public void queueRegisterNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
-        BLECommand command = new BLECommand(callbackContext, serviceUUID, characteristicUUID, BLECommand.REGISTER_NOTIFY);
+    /**
+     * Fill in the UUIDs of a command addressed by handle. Returns false if the handle isn't a
+     * characteristic of the discovered services. While the services are being discovered the
+     * handle is resolved when the command runs.
+     */
+    boolean resolveHandle(BLECommand command) {
+        if (command.getHandle() == GattIndex.NO_HANDLE || command.getCharacteristicUUID() != null || discovering) {
+            return true;
+        }
+        BluetoothGattCharacteristic characteristic = attributes.characteristic(command.getHandle());
+        if (characteristic == null) {
+            return false;
+        }
+        command.setCharacteristic(characteristic);
+        return true;
+    }
+
+    /**
+     * Queue the operations of a batch together, so they run one after the other in the batch's
+     * lane. Each command reports to its BatchCallbackContext, the batch reports once to JavaScript.
+     */
+    public void queueBatch(CallbackContext callbackContext, List<BLECommand> commands) {
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+
+        LOG.d(TAG,"Queuing Batch of " + commands.size() + " Commands");
+        commandQueue.addAll(commands);
+
+        if (!bleProcessing) {
+            processCommands();
+        }
+    }
+
+    // remove the operations of an aborted batch that haven't started
+    void cancelBatch(List<BLECommand> commands) {
+        commandQueue.removeAll(commands);
+    }
+
+    private void queueCommand(BLECommand command, JSONObject options) {
+        if (!command.setOptions(options)) {
+            command.getCallbackContext().error("Invalid priority " + options.optString("priority"));
+            return;
+        }
         queueCommand(command);
     }
 
     // add a new command to the queue
     private void queueCommand(BLECommand command) {
-        LOG.d(TAG,"Queuing Command " + command);
-        commandQueue.add(command);
+        if (!resolveHandle(command)) {
+            command.getCallbackContext().error("Characteristic handle " + command.getHandle() + " not found.");
+            return;
+        }
 
         PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
         result.setKeepCallback(true);
         command.getCallbackContext().sendPluginResult(result);
 
+        // duplicate reads share the queued read
+        if (command.getType() == BLECommand.READ && commandQueue.coalesceRead(command)) {
+            LOG.d(TAG,"Coalesced Read " + command.getCharacteristicUUID());
+            return;
+        }
+
+        LOG.d(TAG,"Queuing Command " + command);
+        commandQueue.add(command);
+
         if (!bleProcessing) {
             processCommands();
         }
     }
 
+    /**
+     * Fail the queued commands that match, null matches any service, characteristic or lane.
+     * The running command is not cancelled. Returns the number of cancelled commands.
+     */
+    public int cancelCommands(UUID serviceUUID, UUID characteristicUUID, int lane) {
+        List<BLECommand> cancelled = commandQueue.cancel(serviceUUID, characteristicUUID, lane);
+        for (BLECommand command : cancelled) {
+            command.getCallbackContext().error("Cancelled");
+        }
+        return cancelled.size();
+    }
+
+    public JSONObject getQueueStats() throws JSONException {
+        return commandQueue.stats();
+    }
+
     // command finished, queue the next command
     private void commandCompleted() {
         LOG.d(TAG,"Processing Complete");
+        handler.removeCallbacks(commandTimeout);
+        currentCommand = null;
         bleProcessing = false;
         processCommands();
     }
 
     // process the queue
-    private void processCommands() {
+    private synchronized void processCommands() {
         LOG.d(TAG,"Processing Commands");
 
-        if (bleProcessing) { return; }
+        if (bleProcessing || discovering) { return; }
+
+        // the services changed, commands wait for the new layout
+        if (staleLayout) {
+            if (writesInFlight == 0 && !writeRetryPending) {
+                rediscoverServices();
+            }
+            return;
+        }
+
+        // other commands wait until the streamed writes are done
+        processStreamedWrites();
+        if (writesInFlight > 0 || writeRetryPending) { return; }
 
         BLECommand command = commandQueue.poll();
         if (command != null) {
-            if (command.getType() == BLECommand.READ) {
-                LOG.d(TAG,"Read " + command.getCharacteristicUUID());
-                bleProcessing = true;
-                readCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID());
-            } else if (command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) {
-                LOG.d(TAG,"Write " + command.getCharacteristicUUID());
-                bleProcessing = true;
-                writeCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getData(), command.getType());
-            } else if (command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
-                LOG.d(TAG,"Write No Response " + command.getCharacteristicUUID());
-                bleProcessing = true;
-                writeCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getData(), command.getType());
-            } else if (command.getType() == BLECommand.REGISTER_NOTIFY) {
-                LOG.d(TAG,"Register Notify " + command.getCharacteristicUUID());
-                bleProcessing = true;
-                registerNotifyCallback(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID());
-            } else {
-                // this shouldn't happen
-                throw new RuntimeException("Unexpected BLE Command type " + command.getType());
-            }
+            runCommand(command);
         } else {
             LOG.d(TAG, "Command Queue is empty.");
         }
 
     }
 
-    private String generateHashKey(BluetoothGattCharacteristic characteristic) {
-        return generateHashKey(characteristic.getService().getUuid(), characteristic);
+    // start the command, the queue is blocked until commandCompleted() or the command times out
+    private void runCommand(BLECommand command) {
+        bleProcessing = true;
+        currentCommand = command;
+        armWatchdog(command);
+
+        // queued while the services were being discovered
+        if (!resolveHandle(command)) {
+            command.getCallbackContext().error("Characteristic handle " + command.getHandle() + " not found.");
+            commandCompleted();
+            return;
+        }
+
+        if (command.getType() == BLECommand.READ) {
+            LOG.d(TAG,"Read " + command.getCharacteristicUUID());
+            readCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getHandle());
+        } else if (command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) {
+            LOG.d(TAG,"Write " + command.getCharacteristicUUID());
+            writeCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getHandle(), command.getData(), command.getType());
+        } else if (command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            LOG.d(TAG,"Write No Response " + command.getCharacteristicUUID());
+            writeCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getHandle(), command.getData(), command.getType());
+        } else if (command.getType() == BLECommand.WRITE_LARGE) {
+            LOG.d(TAG,"Write Large " + command.getCharacteristicUUID());
+            startTransfer((WriteTransfer) command);
+        } else if (command.getType() == BLECommand.REQUEST_MTU) {
+            LOG.d(TAG,"Request MTU " + command.getValue());
+            requestMtu(command.getCallbackContext(), command.getValue());
+        } else if (command.getType() == BLECommand.REQUEST_CONNECTION_PRIORITY) {
+            LOG.d(TAG,"Request Connection Priority " + command.getValue());
+            requestConnectionPriority(command.getCallbackContext(), command.getValue());
+        } else if (command.getType() == BLECommand.SET_PREFERRED_PHY) {
+            LOG.d(TAG,"Set Preferred PHY " + command.getValue());
+            setPreferredPhy(command.getCallbackContext(), command.getValue() & 0xff, command.getValue() >> 8);
+        } else if (command.getType() == BLECommand.REGISTER_NOTIFY) {
+            LOG.d(TAG,"Register Notify " + command.getCharacteristicUUID());
+            NotificationSubscription subscription = ((NotifyCommand) command).getSubscription();
+            registerNotifyCallback(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getHandle(), command.getType(), subscription);
+        } else if (command.getType() == BLECommand.ENABLE_NOTIFY) {
+            LOG.d(TAG,"Enable Notify " + command.getCharacteristicUUID());
+            registerNotifyCallback(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getHandle(), command.getType());
+        } else if (command.getType() == BLECommand.REMOVE_NOTIFY) {
+            LOG.d(TAG,"Remove Notify " + command.getCharacteristicUUID());
+            registerNotifyCallback(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getHandle(), command.getType());
+        } else if (command.getType() == BLECommand.READ_DESCRIPTOR) {
+            LOG.d(TAG,"Read Descriptor " + command.getDescriptorUUID());
+            readDescriptor(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getHandle(), command.getDescriptorUUID());
+        } else if (command.getType() == BLECommand.WRITE_DESCRIPTOR) {
+            LOG.d(TAG,"Write Descriptor " + command.getDescriptorUUID());
+            writeDescriptor(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getHandle(), command.getDescriptorUUID(), command.getData());
+        } else {
+            // this shouldn't happen
+            throw new RuntimeException("Unexpected BLE Command type " + command.getType());
+        }
+    }
+
+    private void armWatchdog(BLECommand command) {
+        handler.removeCallbacks(commandTimeout);
+        long timeout = command.getTimeout();
+        if (timeout > 0) {
+            handler.postDelayed(commandTimeout, timeout);
+        }
+    }
+
+    // the GATT callback for the current command didn't arrive in time
+    private synchronized void onCommandTimeout() {
+        BLECommand command = currentCommand;
+        if (command == null) {
+            return;
+        }
+        LOG.w(TAG, "Command timed out " + command.getType() + " " + command.getCharacteristicUUID());
+
+        // a late callback must not complete the next command
+        readCallback = null;
+        writeCallback = null;
+        mtuCallback = null;
+        phyCallback = null;
+
+        // the GATT may still be busy with the request, so the command fails instead of running
+        // again, a late callback would otherwise complete the new attempt with stale data
+        if (transfer != null) {
+            finishTransfer("Timed out at offset " + transfer.getOffset());
+            return;
+        }
+        if (command.getType() == BLECommand.REGISTER_NOTIFY) {
+            removeSubscription(((NotifyCommand) command).getSubscription());
+        }
+        command.getCallbackContext().error("Timed out");
+        commandCompleted();
+    }
+
+    // true if the callback is for the characteristic of the current command
+    private boolean isCurrentCommand(BluetoothGattCharacteristic characteristic) {
+        BLECommand command = currentCommand;
+        return command != null && characteristic.getUuid().equals(command.getCharacteristicUUID()) &&
+                (command.getHandle() == GattIndex.NO_HANDLE || command.getHandle() == attributes.handle(characteristic));
+    }
+
+    // replace the subscription for the handle, null removes it. Returns the previous subscription.
+    private synchronized NotificationSubscription putSubscription(int handle, NotificationSubscription subscription) {
+        SparseArray<NotificationSubscription> copy = subscriptions.clone();
+        NotificationSubscription previous = copy.get(handle);
+        if (subscription == null) {
+            copy.remove(handle);
+        } else {
+            copy.put(handle, subscription);
+        }
+        subscriptions = copy;
+        return previous;
+    }
+
+    // drop a subscription whose startNotification failed, it has delivered nothing
+    private synchronized void removeSubscription(NotificationSubscription subscription) {
+        SparseArray<NotificationSubscription> copy = subscriptions.clone();
+        for (int i = copy.size() - 1; i >= 0; i--) {
+            if (copy.valueAt(i) == subscription) {
+                copy.removeAt(i);
+            }
+        }
+        subscriptions = copy;
+        subscription.close();
     }
 
-    private String generateHashKey(UUID serviceUUID, BluetoothGattCharacteristic characteristic) {
-        return String.valueOf(serviceUUID) + "|" + characteristic.getUuid() + "|" + characteristic.getInstanceId();
+    private synchronized void closeSubscriptions() {
+        SparseArray<NotificationSubscription> closed = subscriptions;
+        subscriptions = new SparseArray<NotificationSubscription>();
+        for (int i = 0; i < closed.size(); i++) {
+            closed.valueAt(i).close();
+        }
     }
 
 }
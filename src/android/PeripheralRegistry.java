@@ -0,0 +1,148 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Known peripherals keyed by MAC address.
+ *
+ * The scan thread writes while Cordova's execute thread reads, so the map is concurrent and
+ * lookups don't lock. The registry is bounded: peripherals not seen for ttl ms are evicted by
+ * evictStale(), and when more than maxSize peripherals are known the least recently seen are
+ * evicted. Connected and connecting peripherals are never evicted.
+ */
+class PeripheralRegistry {
+
+    interface EvictionListener {
+        void onPeripheralEvicted(Peripheral peripheral);
+    }
+
+    static final int DEFAULT_MAX_SIZE = 1024;
+
+    // evicting down to a bit below the cap keeps the eviction cost off most inserts
+    private static final float EVICT_TO = 0.9f;
+
+    private final ConcurrentHashMap<String, Peripheral> peripherals = new ConcurrentHashMap<String, Peripheral>();
+    private final EvictionListener listener;
+
+    private volatile int maxSize = DEFAULT_MAX_SIZE;
+    private volatile long ttl = 0; // 0 disables age based eviction
+
+    private static final Comparator<Peripheral> OLDEST_FIRST = new Comparator<Peripheral>() {
+        @Override
+        public int compare(Peripheral a, Peripheral b) {
+            long x = a.getLastSeen();
+            long y = b.getLastSeen();
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+    };
+
+    PeripheralRegistry(EvictionListener listener) {
+        this.listener = listener;
+    }
+
+    void configure(int maxSize, long ttl) {
+        this.maxSize = maxSize > 0 ? maxSize : DEFAULT_MAX_SIZE;
+        this.ttl = Math.max(0, ttl);
+    }
+
+    long getTtl() {
+        return ttl;
+    }
+
+    Peripheral get(String address) {
+        return peripherals.get(address);
+    }
+
+    boolean contains(String address) {
+        return peripherals.containsKey(address);
+    }
+
+    // returns the peripheral already registered for the address, if another thread won the race
+    Peripheral putIfAbsent(String address, Peripheral peripheral) {
+        Peripheral existing = peripherals.putIfAbsent(address, peripheral);
+        if (existing != null) {
+            return existing;
+        }
+        if (peripherals.size() > maxSize) {
+            evictOldest();
+        }
+        return peripheral;
+    }
+
+    Collection<Peripheral> values() {
+        return Collections.unmodifiableCollection(peripherals.values());
+    }
+
+    int size() {
+        return peripherals.size();
+    }
+
+    // forget every peripheral that isn't in use, without notifying the listener
+    void removeDisconnected() {
+        for (Peripheral peripheral : peripherals.values()) {
+            if (!peripheral.isInUse()) {
+                peripherals.remove(peripheral.getAddress(), peripheral);
+            }
+        }
+    }
+
+    // evict peripherals not seen for ttl ms
+    void evictStale() {
+        if (ttl <= 0) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        for (Peripheral peripheral : peripherals.values()) {
+            if (now - peripheral.getLastSeen() > ttl) {
+                evict(peripheral);
+            }
+        }
+    }
+
+    private synchronized void evictOldest() {
+        int target = (int) (maxSize * EVICT_TO);
+        if (peripherals.size() <= target) {
+            return;
+        }
+
+        List<Peripheral> candidates = new ArrayList<Peripheral>();
+        for (Peripheral peripheral : peripherals.values()) {
+            if (!peripheral.isInUse()) {
+                candidates.add(peripheral);
+            }
+        }
+        Collections.sort(candidates, OLDEST_FIRST);
+
+        for (int i = 0; i < candidates.size() && peripherals.size() > target; i++) {
+            evict(candidates.get(i));
+        }
+    }
+
+    private void evict(Peripheral peripheral) {
+        // a peripheral may have started connecting since it was picked
+        if (!peripheral.isInUse() && peripherals.remove(peripheral.getAddress(), peripheral) && listener != null) {
+            listener.onPeripheralEvicted(peripheral);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Options passed to startProximity.
+ */
+class ProximityOptions {
+
+    // RssiFilter.EMA, MEDIAN or KALMAN
+    int filter = RssiFilter.EMA;
+
+    // EMA weight of the newest sample
+    double alpha = 0.25;
+
+    // number of samples for the median filter
+    int window = 5;
+
+    // Kalman filter noise
+    double processNoise = 0.01;
+    double measurementNoise = 3;
+
+    // smoothed values are sent at most every interval ms
+    long interval = 1000;
+
+    // estimate the distance with the log-distance path loss model
+    boolean distance = false;
+
+    // RSSI at 1 m, derived from the advertised TX power when not set
+    int measuredPower = AdvertisingData.TX_POWER_NOT_PRESENT;
+
+    // 2 in free space, 2.5 to 4 indoors
+    double pathLossExponent = 2;
+
+    private static final String[] FILTERS = { "ema", "median", "kalman" };
+
+    static ProximityOptions fromJSON(JSONObject json) throws JSONException {
+        ProximityOptions options = new ProximityOptions();
+        if (json == null) {
+            return options;
+        }
+
+        String filter = json.optString("filter", FILTERS[options.filter]);
+        options.filter = -1;
+        for (int i = 0; i < FILTERS.length; i++) {
+            if (FILTERS[i].equals(filter)) {
+                options.filter = i;
+            }
+        }
+        if (options.filter < 0) {
+            throw new JSONException("Invalid filter " + filter);
+        }
+
+        options.alpha = json.optDouble("alpha", options.alpha);
+        if (options.alpha <= 0 || options.alpha > 1) {
+            throw new JSONException("alpha must be between 0 and 1");
+        }
+        options.window = Math.max(1, json.optInt("window", options.window));
+        options.processNoise = positive(json, "processNoise", options.processNoise);
+        options.measurementNoise = positive(json, "measurementNoise", options.measurementNoise);
+
+        options.interval = Math.max(100, json.optLong("interval", options.interval));
+
+        options.distance = json.optBoolean("distance", options.distance);
+        if (json.has("measuredPower")) {
+            options.measuredPower = json.getInt("measuredPower");
+        }
+        // 0 divides the path loss by 0, the distance would be infinite
+        options.pathLossExponent = positive(json, "pathLossExponent", options.pathLossExponent);
+
+        return options;
+    }
+
+    // NaN fails the test too
+    private static double positive(JSONObject json, String key, double defaultValue) throws JSONException {
+        double value = json.optDouble(key, defaultValue);
+        if (!(value > 0) || Double.isInfinite(value)) {
+            throw new JSONException(key + " must be greater than 0");
+        }
+        return value;
+    }
+}
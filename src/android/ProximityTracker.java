@@ -0,0 +1,143 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.os.Handler;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Smooths the RSSI of one peripheral and sends the result to JavaScript at a fixed rate.
+ *
+ * Samples come from advertisements while scanning and from readRemoteRssi while connected.
+ * Every sample goes through the RssiFilter natively; only the latest smoothed value (and the
+ * distance estimate) crosses the bridge, once per interval and only if new samples arrived.
+ */
+class ProximityTracker {
+
+    // path loss between the 0 m TX power in the advertisement and the RSSI at 1 m
+    private static final int TX_POWER_TO_1M = 41;
+
+    private final String address;
+    private final CallbackContext callbackContext;
+    private final ProximityOptions options;
+    private final RssiFilter filter;
+    private final Handler handler;
+
+    private final AdvertisingData advertisingData = new AdvertisingData();
+    private int txPower = AdvertisingData.TX_POWER_NOT_PRESENT;
+
+    private double smoothed;
+    private int raw;
+    private int samples; // since the last report
+    private boolean running;
+
+    private final Runnable reportTask = new Runnable() {
+        @Override
+        public void run() {
+            report();
+            synchronized (ProximityTracker.this) {
+                if (running) {
+                    handler.postDelayed(this, options.interval);
+                }
+            }
+        }
+    };
+
+    ProximityTracker(String address, CallbackContext callbackContext, ProximityOptions options, Handler handler) {
+        this.address = address;
+        this.callbackContext = callbackContext;
+        this.options = options;
+        this.handler = handler;
+        this.filter = RssiFilter.create(options);
+    }
+
+    synchronized void start() {
+        running = true;
+        handler.postDelayed(reportTask, options.interval);
+    }
+
+    synchronized void stop() {
+        running = false;
+        handler.removeCallbacks(reportTask);
+    }
+
+    // RSSI of an advertisement, the TX power is taken from the scan record
+    synchronized void addSample(int rssi, byte[] scanRecord) {
+        if (scanRecord != null && options.distance && options.measuredPower == AdvertisingData.TX_POWER_NOT_PRESENT) {
+            int power = advertisingData.wrap(scanRecord).getTxPowerLevel();
+            if (power != AdvertisingData.TX_POWER_NOT_PRESENT) {
+                txPower = power;
+            }
+        }
+        addSample(rssi);
+    }
+
+    // RSSI read from a connected peripheral
+    synchronized void addSample(int rssi) {
+        // 127 means the RSSI is not available
+        if (rssi >= 127) {
+            return;
+        }
+        raw = rssi;
+        smoothed = filter.add(rssi);
+        samples++;
+    }
+
+    private void report() {
+        JSONObject json = new JSONObject();
+
+        synchronized (this) {
+            if (!running || samples == 0) {
+                return;
+            }
+
+            try {
+                json.put("id", address);
+                json.put("rssi", Math.round(smoothed * 10) / 10.0);
+                json.put("raw", raw);
+                json.put("samples", samples);
+                if (options.distance) {
+                    int power = measuredPower();
+                    if (power != AdvertisingData.TX_POWER_NOT_PRESENT) {
+                        double distance = Math.pow(10, (power - smoothed) / (10 * options.pathLossExponent));
+                        json.put("distance", Math.round(distance * 100) / 100.0);
+                    }
+                }
+            } catch (JSONException e) { // this shouldn't happen
+                e.printStackTrace();
+            }
+            samples = 0;
+        }
+
+        PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+    }
+
+    // RSSI at 1 m, from the options or the advertised TX power
+    private int measuredPower() {
+        if (options.measuredPower != AdvertisingData.TX_POWER_NOT_PRESENT) {
+            return options.measuredPower;
+        }
+        if (txPower != AdvertisingData.TX_POWER_NOT_PRESENT) {
+            return txPower - TX_POWER_TO_1M;
+        }
+        return AdvertisingData.TX_POWER_NOT_PRESENT;
+    }
+}
@@ -0,0 +1,131 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import java.util.Arrays;
+
+/**
+ * Smooths a stream of RSSI samples. Implementations keep their state in fields and arrays
+ * allocated up front, adding a sample doesn't allocate.
+ */
+abstract class RssiFilter {
+
+    static final int EMA = 0;
+    static final int MEDIAN = 1;
+    static final int KALMAN = 2;
+
+    static RssiFilter create(ProximityOptions options) {
+        switch (options.filter) {
+            case MEDIAN:
+                return new Median(options.window);
+            case KALMAN:
+                return new Kalman(options.processNoise, options.measurementNoise);
+            default:
+                return new Ema(options.alpha);
+        }
+    }
+
+    // add a sample and return the smoothed value
+    abstract double add(int rssi);
+
+    /**
+     * Exponential moving average, alpha is the weight of the newest sample.
+     */
+    static class Ema extends RssiFilter {
+
+        private final double alpha;
+        private double value;
+        private boolean initialized;
+
+        Ema(double alpha) {
+            this.alpha = alpha;
+        }
+
+        @Override
+        double add(int rssi) {
+            if (initialized) {
+                value += alpha * (rssi - value);
+            } else {
+                value = rssi;
+                initialized = true;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Median of the last window samples, rejects the short deep fades typical for RSSI.
+     */
+    static class Median extends RssiFilter {
+
+        private final int[] samples;
+        private final int[] sorted;
+        private int count;
+        private int next;
+
+        Median(int window) {
+            samples = new int[window];
+            sorted = new int[window];
+        }
+
+        @Override
+        double add(int rssi) {
+            samples[next] = rssi;
+            next = (next + 1) % samples.length;
+            if (count < samples.length) {
+                count++;
+            }
+
+            System.arraycopy(samples, 0, sorted, 0, count);
+            Arrays.sort(sorted, 0, count);
+            int middle = count / 2;
+            return count % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2.0;
+        }
+    }
+
+    /**
+     * One dimensional Kalman filter for a value that is expected to change slowly.
+     * processNoise is how fast the true RSSI drifts, measurementNoise how noisy a sample is.
+     */
+    static class Kalman extends RssiFilter {
+
+        private final double processNoise;
+        private final double measurementNoise;
+        private double estimate;
+        private double covariance;
+        private boolean initialized;
+
+        Kalman(double processNoise, double measurementNoise) {
+            this.processNoise = processNoise;
+            this.measurementNoise = measurementNoise;
+        }
+
+        @Override
+        double add(int rssi) {
+            if (!initialized) {
+                estimate = rssi;
+                covariance = measurementNoise;
+                initialized = true;
+                return estimate;
+            }
+
+            covariance += processNoise;
+            double gain = covariance / (covariance + measurementNoise);
+            estimate += gain * (rssi - estimate);
+            covariance *= 1 - gain;
+            return estimate;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+
+/**
+ * Collects scan results and sends them to JavaScript as one array per batch.
+ *
+ * A batch is flushed when it holds batchSize results or batchInterval ms after its first result,
+ * whichever comes first. Hardware batches (onBatchScanResults) are flushed as soon as they are added.
+ * In binary mode the batch is a single ArrayBuffer built by ScanResultEncoder.
+ */
+class ScanBatcher {
+
+    private final CallbackContext callbackContext;
+    private final int batchSize;
+    private final long batchInterval;
+    private final ScanResultEncoder encoder; // null unless binary
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // the binary format stores the record count in 16 bits
+    private static final int MAX_BATCH_SIZE = 0xffff;
+
+    private JSONArray pending = new JSONArray();
+    private boolean flushScheduled = false;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanBatcher.this) {
+                flushScheduled = false;
+            }
+            flush();
+        }
+    };
+
+    ScanBatcher(CallbackContext callbackContext, int batchSize, long batchInterval, boolean binary) {
+        this.callbackContext = callbackContext;
+        this.batchSize = batchSize;
+        this.batchInterval = batchInterval;
+        this.encoder = binary ? new ScanResultEncoder() : null;
+    }
+
+    // snapshot the peripheral's current advertisement into the batch
+    void add(Peripheral peripheral) {
+        boolean full;
+        synchronized (this) {
+            int size;
+            if (encoder != null) {
+                encoder.append(peripheral);
+                size = encoder.count();
+            } else {
+                pending.put(peripheral.asJSONObject());
+                size = pending.length();
+            }
+            full = (batchSize > 0 && size >= batchSize) || size >= MAX_BATCH_SIZE;
+            if (!full && batchInterval > 0 && !flushScheduled) {
+                flushScheduled = true;
+                handler.postDelayed(flushTask, batchInterval);
+            }
+        }
+        if (full) {
+            close();
+        }
+    }
+
+    void flush() {
+        PluginResult result;
+        synchronized (this) {
+            if (encoder != null) {
+                if (encoder.count() == 0) {
+                    return;
+                }
+                result = new PluginResult(PluginResult.Status.OK, encoder.toByteArray());
+                encoder.reset();
+            } else {
+                if (pending.length() == 0) {
+                    return;
+                }
+                result = new PluginResult(PluginResult.Status.OK, pending);
+                pending = new JSONArray();
+            }
+        }
+
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+    }
+
+    // send what is left and stop the timer
+    void close() {
+        handler.removeCallbacks(flushTask);
+        synchronized (this) {
+            flushScheduled = false;
+        }
+        flush();
+    }
+}
@@ -0,0 +1,206 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanFilter;
+import android.os.ParcelUuid;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * One entry of the startScanWithOptions filters list. All criteria that are set must match.
+ *
+ * Criteria the Android ScanFilter supports are compiled to a ScanFilter so the controller (or the
+ * Bluetooth stack) drops non-matching advertisements. Name prefix and minimum RSSI have no
+ * ScanFilter equivalent and are checked in software with matches().
+ */
+class ScanFilterSpec {
+
+    String name;
+    String namePrefix;
+    String address;
+    UUID serviceUuid;
+
+    int manufacturerId = -1;
+    byte[] manufacturerData;
+    byte[] manufacturerDataMask;
+
+    UUID serviceDataUuid;
+    byte[] serviceData;
+    byte[] serviceDataMask;
+
+    int minRssi = Integer.MIN_VALUE;
+
+    static ScanFilterSpec forService(UUID uuid) {
+        ScanFilterSpec spec = new ScanFilterSpec();
+        spec.serviceUuid = uuid;
+        return spec;
+    }
+
+    static ScanFilterSpec fromJSON(JSONObject json) throws JSONException {
+        ScanFilterSpec spec = new ScanFilterSpec();
+
+        spec.name = optString(json, "name");
+        spec.namePrefix = optString(json, "namePrefix");
+
+        String address = optString(json, "address");
+        if (address != null) {
+            // ScanFilter.Builder throws for an address it can't parse
+            spec.address = address.toUpperCase();
+            if (!BluetoothAdapter.checkBluetoothAddress(spec.address)) {
+                throw new JSONException("Invalid address " + address);
+            }
+        }
+
+        String service = optString(json, "service");
+        if (service != null) {
+            spec.serviceUuid = UUIDHelper.uuidFromString(service);
+        }
+
+        if (json.has("manufacturerId")) {
+            spec.manufacturerId = json.getInt("manufacturerId");
+            spec.manufacturerData = optBytes(json, "manufacturerData");
+            spec.manufacturerDataMask = optBytes(json, "manufacturerDataMask");
+        }
+
+        String serviceDataUuid = optString(json, "serviceDataUuid");
+        if (serviceDataUuid != null) {
+            spec.serviceDataUuid = UUIDHelper.uuidFromString(serviceDataUuid);
+            spec.serviceData = optBytes(json, "serviceData");
+            spec.serviceDataMask = optBytes(json, "serviceDataMask");
+        }
+
+        if (json.has("minRssi")) {
+            spec.minRssi = json.getInt("minRssi");
+        }
+
+        return spec;
+    }
+
+    // true if some criteria can't be expressed as a ScanFilter
+    boolean hasSoftwareCriteria() {
+        return namePrefix != null || minRssi != Integer.MIN_VALUE;
+    }
+
+    @TargetApi(21)
+    ScanFilter toScanFilter() {
+        ScanFilter.Builder builder = new ScanFilter.Builder();
+        if (name != null) {
+            builder.setDeviceName(name);
+        }
+        if (address != null) {
+            builder.setDeviceAddress(address);
+        }
+        if (serviceUuid != null) {
+            builder.setServiceUuid(new ParcelUuid(serviceUuid));
+        }
+        if (manufacturerId >= 0) {
+            byte[] data = manufacturerData == null ? new byte[0] : manufacturerData;
+            builder.setManufacturerData(manufacturerId, data, mask(manufacturerDataMask, data.length));
+        }
+        if (serviceDataUuid != null) {
+            byte[] data = serviceData == null ? new byte[0] : serviceData;
+            builder.setServiceData(new ParcelUuid(serviceDataUuid), data, mask(serviceDataMask, data.length));
+        }
+        return builder.build();
+    }
+
+    // software predicate, the record is read in place
+    boolean matches(String address, int rssi, AdvertisingData advertising) {
+        if (rssi < minRssi) {
+            return false;
+        }
+        if (this.address != null && !this.address.equalsIgnoreCase(address)) {
+            return false;
+        }
+        if (name != null && !advertising.localNameEquals(name)) {
+            return false;
+        }
+        if (namePrefix != null && !advertising.localNameStartsWith(namePrefix)) {
+            return false;
+        }
+        if (serviceUuid != null && !advertising.hasServiceUuid(serviceUuid)) {
+            return false;
+        }
+        if (manufacturerId >= 0 && !(advertising.findManufacturerData(manufacturerId) &&
+                advertising.fieldMatches(manufacturerData, manufacturerDataMask))) {
+            return false;
+        }
+        if (serviceDataUuid != null && !(advertising.findServiceData(serviceDataUuid) &&
+                advertising.fieldMatches(serviceData, serviceDataMask))) {
+            return false;
+        }
+        return true;
+    }
+
+    // identifies the filter when comparing scans
+    @Override
+    public String toString() {
+        return name + "|" + namePrefix + "|" + address + "|" + serviceUuid + "|" +
+                manufacturerId + "|" + Arrays.toString(manufacturerData) + "|" + Arrays.toString(manufacturerDataMask) + "|" +
+                serviceDataUuid + "|" + Arrays.toString(serviceData) + "|" + Arrays.toString(serviceDataMask) + "|" + minRssi;
+    }
+
+    // ScanFilter requires the mask to be as long as the data
+    private static byte[] mask(byte[] mask, int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = mask == null || i >= mask.length ? (byte) 0xff : mask[i];
+        }
+        return result;
+    }
+
+    private static String optString(JSONObject json, String key) {
+        return json.isNull(key) ? null : json.optString(key, null);
+    }
+
+    // bytes are an array of numbers or a hex string
+    private static byte[] optBytes(JSONObject json, String key) throws JSONException {
+        if (json.isNull(key)) {
+            return null;
+        }
+
+        JSONArray array = json.optJSONArray(key);
+        if (array != null) {
+            byte[] bytes = new byte[array.length()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) array.getInt(i);
+            }
+            return bytes;
+        }
+
+        String hex = json.getString(key);
+        if (hex.length() % 2 != 0) {
+            throw new JSONException("Invalid hex string for " + key);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new JSONException("Invalid hex string for " + key);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,152 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.le.ScanSettings;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options passed to startScanWithOptions. Missing keys keep the behavior of startScan.
+ */
+class ScanOptions {
+
+    // report a device at most every reportInterval ms, 0 reports every advertisement
+    long reportInterval = 0;
+
+    // only report a device again when its advertising data changes
+    boolean reportOnChange = false;
+
+    // only report a device again when its RSSI moved by at least this many dB, 0 disables
+    int rssiThreshold = 0;
+
+    // deliver results as arrays, flushed when batchSize results are pending or batchInterval ms passed
+    int batchSize = 0;
+    long batchInterval = 0;
+
+    // send results as ArrayBuffers in the ScanResultEncoder format instead of JSON
+    boolean binary = false;
+
+    // bound the peripheral registry, devices not seen for deviceTimeout ms are reported lost, 0 disables
+    int maxDevices = PeripheralRegistry.DEFAULT_MAX_SIZE;
+    long deviceTimeout = 0;
+
+    // a device is reported when it matches any of the filters (or any service in the services list)
+    List<ScanFilterSpec> filters = new ArrayList<ScanFilterSpec>();
+
+    // ScanSettings for API 21+, each session builds its own
+    int scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+    int matchMode = ScanSettings.MATCH_MODE_AGGRESSIVE; // API 23
+    int numOfMatches = ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT; // API 23
+    int callbackType = ScanSettings.CALLBACK_TYPE_ALL_MATCHES; // API 23
+    long reportDelay = -1; // -1 derives the delay from batchInterval
+    boolean legacy = true; // API 26
+    int phy = ScanSettings.PHY_LE_ALL_SUPPORTED; // API 26
+
+    private static final String[] SCAN_MODES = { "opportunistic", "lowPower", "balanced", "lowLatency" };
+    private static final int[] SCAN_MODE_VALUES = { ScanSettings.SCAN_MODE_OPPORTUNISTIC, ScanSettings.SCAN_MODE_LOW_POWER,
+            ScanSettings.SCAN_MODE_BALANCED, ScanSettings.SCAN_MODE_LOW_LATENCY };
+
+    private static final String[] MATCH_MODES = { "aggressive", "sticky" };
+    private static final int[] MATCH_MODE_VALUES = { ScanSettings.MATCH_MODE_AGGRESSIVE, ScanSettings.MATCH_MODE_STICKY };
+
+    private static final String[] NUM_OF_MATCHES = { "one", "few", "max" };
+    private static final int[] NUM_OF_MATCHES_VALUES = { ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT,
+            ScanSettings.MATCH_NUM_FEW_ADVERTISEMENT, ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT };
+
+    private static final String[] CALLBACK_TYPES = { "allMatches", "firstMatch", "matchLost", "firstMatchAndMatchLost" };
+    private static final int[] CALLBACK_TYPE_VALUES = { ScanSettings.CALLBACK_TYPE_ALL_MATCHES, ScanSettings.CALLBACK_TYPE_FIRST_MATCH,
+            ScanSettings.CALLBACK_TYPE_MATCH_LOST, ScanSettings.CALLBACK_TYPE_FIRST_MATCH | ScanSettings.CALLBACK_TYPE_MATCH_LOST };
+
+    // BluetoothDevice.PHY_LE_1M and PHY_LE_CODED
+    private static final String[] PHYS = { "1m", "coded", "all" };
+    private static final int[] PHY_VALUES = { 1, 3, ScanSettings.PHY_LE_ALL_SUPPORTED };
+
+    static ScanOptions fromJSON(JSONObject json) throws JSONException {
+        ScanOptions options = new ScanOptions();
+        if (json == null) {
+            return options;
+        }
+
+        options.reportInterval = Math.max(0, json.optLong("reportInterval", options.reportInterval));
+        options.reportOnChange = json.optBoolean("reportOnChange", options.reportOnChange);
+        options.rssiThreshold = Math.max(0, json.optInt("rssiThreshold", options.rssiThreshold));
+
+        options.batchSize = Math.max(0, json.optInt("batchSize", options.batchSize));
+        options.batchInterval = Math.max(0, json.optLong("batchInterval", options.batchInterval));
+        options.binary = json.optBoolean("binary", options.binary);
+
+        options.scanMode = parseConstant(json, "scanMode", SCAN_MODES, SCAN_MODE_VALUES, options.scanMode);
+        options.matchMode = parseConstant(json, "matchMode", MATCH_MODES, MATCH_MODE_VALUES, options.matchMode);
+        options.numOfMatches = parseConstant(json, "numOfMatches", NUM_OF_MATCHES, NUM_OF_MATCHES_VALUES, options.numOfMatches);
+        options.callbackType = parseConstant(json, "callbackType", CALLBACK_TYPES, CALLBACK_TYPE_VALUES, options.callbackType);
+        options.reportDelay = json.optLong("reportDelay", options.reportDelay);
+        options.legacy = json.optBoolean("legacy", options.legacy);
+        options.phy = parseConstant(json, "phy", PHYS, PHY_VALUES, options.phy);
+
+        options.maxDevices = json.optInt("maxDevices", options.maxDevices);
+        options.deviceTimeout = Math.max(0, json.optLong("deviceTimeout", options.deviceTimeout));
+
+        JSONArray filters = json.optJSONArray("filters");
+        if (filters != null) {
+            for (int i = 0; i < filters.length(); i++) {
+                options.filters.add(ScanFilterSpec.fromJSON(filters.getJSONObject(i)));
+            }
+        }
+
+        // reportDuplicates: false only reports a device when it is first found or its advertising changes
+        if (json.has("reportDuplicates") && !json.optBoolean("reportDuplicates", true)) {
+            options.reportOnChange = true;
+        }
+
+        return options;
+    }
+
+    // accepts one of the names or the numeric Android constant
+    private static int parseConstant(JSONObject json, String key, String[] names, int[] values, int defaultValue) throws JSONException {
+        Object value = json.opt(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Number) {
+            int number = ((Number) value).intValue();
+            for (int v : values) {
+                if (v == number) {
+                    return number;
+                }
+            }
+        } else {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(value)) {
+                    return values[i];
+                }
+            }
+        }
+        throw new JSONException("Invalid " + key + " " + value);
+    }
+
+    boolean isBatched() {
+        return batchSize > 0 || batchInterval > 0;
+    }
+
+    boolean isThrottled() {
+        return reportInterval > 0 || reportOnChange || rssiThreshold > 0;
+    }
+}
@@ -0,0 +1,107 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides if an advertisement is worth sending to JavaScript.
+ *
+ * A device is always reported the first time it is seen. After that it is reported when the
+ * report interval has elapsed and, if configured, its advertising data changed or its RSSI moved
+ * by more than the threshold. Everything else is dropped before building a PluginResult.
+ *
+ * The state of a device is forgotten when the registry evicts it. The registry doesn't report
+ * every device it drops, so the states are also capped at maxDevices, least recently seen first.
+ */
+class ScanReportThrottle {
+
+    private static class ReportState {
+        long lastReport;
+        int lastRssi;
+        byte[] lastAdvertising; // the stack hands us a new array for every advertisement, so keeping it is safe
+    }
+
+    private final ScanOptions options;
+
+    // key is the MAC Address, in access order
+    private final Map<String, ReportState> states;
+
+    ScanReportThrottle(ScanOptions options) {
+        this.options = options;
+        final int maxSize = options.maxDevices > 0 ? options.maxDevices : PeripheralRegistry.DEFAULT_MAX_SIZE;
+        states = new LinkedHashMap<String, ReportState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ReportState> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    synchronized boolean shouldReport(String address, int rssi, byte[] advertising, long now) {
+        if (!options.isThrottled()) {
+            return true;
+        }
+
+        ReportState state = states.get(address);
+        if (state == null) {
+            state = new ReportState();
+            states.put(address, state);
+        } else {
+            if (now - state.lastReport < options.reportInterval) {
+                return false;
+            }
+            if (!changed(state, rssi, advertising)) {
+                return false;
+            }
+        }
+
+        state.lastReport = now;
+        state.lastRssi = rssi;
+        state.lastAdvertising = advertising;
+        return true;
+    }
+
+    synchronized void forget(String address) {
+        states.remove(address);
+    }
+
+    synchronized void clear() {
+        states.clear();
+    }
+
+    private boolean changed(ReportState state, int rssi, byte[] advertising) {
+        boolean hasTrigger = false;
+
+        if (options.reportOnChange) {
+            hasTrigger = true;
+            if (!Arrays.equals(state.lastAdvertising, advertising)) {
+                return true;
+            }
+        }
+
+        if (options.rssiThreshold > 0) {
+            hasTrigger = true;
+            if (Math.abs(rssi - state.lastRssi) >= options.rssiThreshold) {
+                return true;
+            }
+        }
+
+        // interval only, report once it has elapsed
+        return !hasTrigger;
+    }
+}
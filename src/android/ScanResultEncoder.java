@@ -0,0 +1,106 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import java.util.Arrays;
+
+/**
+ * Packs scan results into the compact binary format decoded by decodeScanResults in ble.js.
+ *
+ * All values are little endian.
+ *
+ *   header:  uint8 version, uint8 reserved, uint16 record count
+ *   record:  6 bytes MAC address (as written, most significant byte first)
+ *            int8 RSSI, uint8 reserved
+ *            float64 timestamp (ms since epoch)
+ *            uint16 advertising length, advertising bytes
+ *
+ * The encoder reuses its buffer between messages, only toByteArray() allocates.
+ */
+class ScanResultEncoder {
+
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 18;
+
+    private byte[] buffer = new byte[512];
+    private int position;
+    private int count;
+
+    ScanResultEncoder() {
+        reset();
+    }
+
+    void reset() {
+        position = HEADER_SIZE;
+        count = 0;
+    }
+
+    int count() {
+        return count;
+    }
+
+    void append(String address, int rssi, long timestamp, byte[] advertising) {
+        int advertisingLength = advertising == null ? 0 : Math.min(advertising.length, 0xffff);
+        ensureCapacity(RECORD_HEADER_SIZE + advertisingLength);
+
+        // AA:BB:CC:DD:EE:FF
+        for (int i = 0; i < 6; i++) {
+            int c = i * 3;
+            buffer[position++] = (byte) ((hex(address.charAt(c)) << 4) | hex(address.charAt(c + 1)));
+        }
+
+        buffer[position++] = (byte) rssi;
+        buffer[position++] = 0;
+
+        long bits = Double.doubleToLongBits((double) timestamp);
+        for (int i = 0; i < 8; i++) {
+            buffer[position++] = (byte) (bits >>> (8 * i));
+        }
+
+        buffer[position++] = (byte) advertisingLength;
+        buffer[position++] = (byte) (advertisingLength >>> 8);
+        if (advertisingLength > 0) {
+            System.arraycopy(advertising, 0, buffer, position, advertisingLength);
+            position += advertisingLength;
+        }
+
+        count++;
+    }
+
+    void append(Peripheral peripheral) {
+        append(peripheral.getAddress(), peripheral.getAdvertisingRSSI(), peripheral.getLastSeenTime(),
+                peripheral.getAdvertisingData());
+    }
+
+    byte[] toByteArray() {
+        buffer[0] = (byte) VERSION;
+        buffer[1] = 0;
+        buffer[2] = (byte) count;
+        buffer[3] = (byte) (count >>> 8);
+        return Arrays.copyOf(buffer, position);
+    }
+
+    private void ensureCapacity(int length) {
+        if (position + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+        }
+    }
+
+    private static int hex(char c) {
+        return Character.digit(c, 16) & 0xf;
+    }
+}
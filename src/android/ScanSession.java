@@ -0,0 +1,274 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.le.ScanSettings;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * One scan subscriber: its filters, report policy and callback.
+ *
+ * Sessions share a single hardware scan (see ScanSessionManager). Every advertisement is
+ * offered to every session, which applies its own filters and throttle before sending.
+ *
+ * When the shared scan reports all matches but the session asked for first match or match lost,
+ * the session emulates its callbackType: it reports a device once, and treats it as lost after
+ * EMULATED_LOST_TIMEOUT ms without an advertisement.
+ */
+class ScanSession {
+
+    // ms without an advertisement before an emulated match lost
+    static final long EMULATED_LOST_TIMEOUT = 10000;
+
+    private static class Match {
+        long lastSeen;
+    }
+
+    private final String id;
+    private final CallbackContext callbackContext;
+    private final ScanOptions options;
+    private final int scanSeconds; // stop after this many seconds, -1 scans until stopped
+
+    // the services list and the filters option, empty finds all devices
+    private final List<ScanFilterSpec> filters;
+    private final boolean hasSoftwareCriteria;
+
+    private final ScanReportThrottle throttle;
+    private final ScanBatcher batcher; // null unless batched
+    private final ScanResultEncoder encoder = new ScanResultEncoder();
+
+    // guarded by this, devices reported while emulating the callbackType, least recently seen first
+    private boolean emulateCallbackType = false;
+    private final Map<String, Match> matches;
+
+    ScanSession(String id, CallbackContext callbackContext, UUID[] serviceUUIDs, int scanSeconds, ScanOptions options) {
+        this.id = id;
+        this.callbackContext = callbackContext;
+        this.scanSeconds = scanSeconds;
+        this.options = options;
+
+        filters = new ArrayList<ScanFilterSpec>(options.filters);
+        for (UUID uuid : serviceUUIDs) {
+            filters.add(ScanFilterSpec.forService(uuid));
+        }
+
+        boolean software = false;
+        for (ScanFilterSpec spec : filters) {
+            software |= spec.hasSoftwareCriteria();
+        }
+        hasSoftwareCriteria = software;
+
+        throttle = new ScanReportThrottle(options);
+        final int maxMatches = options.maxDevices > 0 ? options.maxDevices : PeripheralRegistry.DEFAULT_MAX_SIZE;
+        matches = new LinkedHashMap<String, Match>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Match> eldest) {
+                return size() > maxMatches;
+            }
+        };
+        batcher = options.isBatched() ? new ScanBatcher(callbackContext, options.batchSize, options.batchInterval, options.binary) : null;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    CallbackContext getCallbackContext() {
+        return callbackContext;
+    }
+
+    int getScanSeconds() {
+        return scanSeconds;
+    }
+
+    ScanOptions getOptions() {
+        return options;
+    }
+
+    List<ScanFilterSpec> getFilters() {
+        return filters;
+    }
+
+    boolean hasSoftwareCriteria() {
+        return hasSoftwareCriteria;
+    }
+
+    // lost events are only sent to sessions that asked for them, or set a deviceTimeout
+    private boolean wantsMatchLost() {
+        return (options.callbackType & ScanSettings.CALLBACK_TYPE_MATCH_LOST) != 0;
+    }
+
+    // the callbackType of the shared scan, the session emulates its own if they differ
+    synchronized void setScanCallbackType(int callbackType) {
+        emulateCallbackType = options.callbackType != ScanSettings.CALLBACK_TYPE_ALL_MATCHES && options.callbackType != callbackType;
+        if (!emulateCallbackType) {
+            matches.clear();
+        }
+    }
+
+    // true if an emulated first match reports the advertisement
+    private synchronized boolean isReported(String address, long now) {
+        if (!emulateCallbackType) {
+            return true;
+        }
+        Match match = matches.get(address);
+        if (match != null) {
+            match.lastSeen = now;
+            return false;
+        }
+        match = new Match();
+        match.lastSeen = now;
+        matches.put(address, match);
+        return (options.callbackType & ScanSettings.CALLBACK_TYPE_FIRST_MATCH) != 0;
+    }
+
+    /**
+     * Forget the devices not seen for EMULATED_LOST_TIMEOUT ms, so they are reported again when
+     * found, and send their lost events if the session asked for them.
+     * Returns false if the session doesn't emulate its callbackType.
+     */
+    boolean expireMatches(long now) {
+        List<String> lost = null;
+        synchronized (this) {
+            if (!emulateCallbackType) {
+                return false;
+            }
+            Iterator<Map.Entry<String, Match>> iterator = matches.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Match> entry = iterator.next();
+                if (now - entry.getValue().lastSeen < EMULATED_LOST_TIMEOUT) {
+                    break; // the rest were seen more recently
+                }
+                iterator.remove();
+                if (lost == null) {
+                    lost = new ArrayList<String>();
+                }
+                lost.add(entry.getKey());
+            }
+        }
+        if (lost != null) {
+            for (String address : lost) {
+                throttle.forget(address);
+                if (wantsMatchLost()) {
+                    sendLost(address);
+                }
+            }
+        }
+        return true;
+    }
+
+    // software predicate for the filters, reads the scan record in place
+    boolean matches(String address, int rssi, AdvertisingData advertising) {
+        if (filters.isEmpty()) {
+            return true;
+        }
+        for (ScanFilterSpec spec : filters) {
+            if (spec.matches(address, rssi, advertising)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // drop redundant reports before they cross the bridge
+    void onAdvertisement(Peripheral peripheral, int rssi, byte[] scanRecord) {
+        if (!isReported(peripheral.getAddress(), peripheral.getLastSeen())) {
+            return;
+        }
+        if (!throttle.shouldReport(peripheral.getAddress(), rssi, scanRecord, peripheral.getLastSeen())) {
+            return;
+        }
+
+        if (batcher != null) {
+            batcher.add(peripheral);
+        } else if (options.binary) {
+            PluginResult result;
+            synchronized (encoder) {
+                encoder.reset();
+                encoder.append(peripheral);
+                result = new PluginResult(PluginResult.Status.OK, encoder.toByteArray());
+            }
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+        } else {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, peripheral.asJSONObject());
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+        }
+    }
+
+    // tell JavaScript the peripheral is out of range, so it is reported again when found
+    void onLost(String address) {
+        throttle.forget(address);
+
+        boolean reported;
+        synchronized (this) {
+            reported = !emulateCallbackType || matches.remove(address) != null;
+        }
+        // an emulated match lost follows a match, the device timeout doesn't
+        if (options.deviceTimeout > 0 || (reported && wantsMatchLost())) {
+            sendLost(address);
+        }
+    }
+
+    private void sendLost(String address) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("id", address);
+            json.put("lost", true);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+    }
+
+    void flush() {
+        if (batcher != null) {
+            batcher.flush();
+        }
+    }
+
+    // deliver pending results, the callback is kept so a restarted session can reuse it
+    void close() {
+        if (batcher != null) {
+            batcher.close();
+        }
+    }
+
+    void fail(String message) {
+        close();
+        callbackContext.error(message);
+    }
+
+    void fail(int errorCode) {
+        close();
+        PluginResult result = new PluginResult(PluginResult.Status.ERROR, errorCode);
+        result.setKeepCallback(false);
+        callbackContext.sendPluginResult(result);
+    }
+}
@@ -0,0 +1,151 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.le.ScanSettings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Active scan sessions, keyed by session id.
+ *
+ * All sessions share one hardware scan. The manager computes the union of their filters and
+ * settings; the plugin only restarts the scanner when that union changes, which avoids the
+ * start/stop churn (and Android's scan start rate limit) of one scan per subscriber.
+ */
+class ScanSessionManager {
+
+    // scan, startScan and startScanWithOptions share this session, each call replaces it
+    static final String DEFAULT_SESSION = "default";
+
+    private final Map<String, ScanSession> sessions = new LinkedHashMap<String, ScanSession>();
+
+    // snapshot for the scan thread, replaced whenever the sessions change
+    private volatile ScanSession[] active = new ScanSession[0];
+
+    // returns the session that was replaced, if any
+    synchronized ScanSession put(ScanSession session) {
+        ScanSession previous = sessions.put(session.getId(), session);
+        updateSnapshot();
+        return previous;
+    }
+
+    synchronized ScanSession remove(String id) {
+        ScanSession session = sessions.remove(id);
+        updateSnapshot();
+        return session;
+    }
+
+    // remove the session only if it is still registered, e.g. for a scan timeout
+    synchronized boolean remove(ScanSession session) {
+        if (sessions.get(session.getId()) != session) {
+            return false;
+        }
+        sessions.remove(session.getId());
+        updateSnapshot();
+        return true;
+    }
+
+    synchronized List<ScanSession> removeAll() {
+        List<ScanSession> removed = new ArrayList<ScanSession>(sessions.values());
+        sessions.clear();
+        updateSnapshot();
+        return removed;
+    }
+
+    ScanSession[] sessions() {
+        return active;
+    }
+
+    boolean isEmpty() {
+        return active.length == 0;
+    }
+
+    // filters for the hardware scan, empty (find all) if any session wants everything
+    synchronized List<ScanFilterSpec> unionFilters() {
+        List<ScanFilterSpec> union = new ArrayList<ScanFilterSpec>();
+        for (ScanSession session : sessions.values()) {
+            if (session.getFilters().isEmpty()) {
+                return Collections.emptyList();
+            }
+            union.addAll(session.getFilters());
+        }
+        return union;
+    }
+
+    // the most demanding settings of all sessions
+    synchronized ScanOptions unionOptions() {
+        ScanOptions union = null;
+        for (ScanSession session : sessions.values()) {
+            ScanOptions options = session.getOptions();
+            long reportDelay = options.reportDelay >= 0 ? options.reportDelay : options.batchInterval;
+
+            if (union == null) {
+                union = new ScanOptions();
+                union.scanMode = options.scanMode;
+                union.matchMode = options.matchMode;
+                union.numOfMatches = options.numOfMatches;
+                union.callbackType = options.callbackType;
+                union.reportDelay = reportDelay;
+                union.legacy = options.legacy;
+                union.phy = options.phy;
+                union.maxDevices = options.maxDevices;
+                union.deviceTimeout = options.deviceTimeout;
+                continue;
+            }
+
+            // SCAN_MODE_OPPORTUNISTIC < LOW_POWER < BALANCED < LOW_LATENCY
+            union.scanMode = Math.max(union.scanMode, options.scanMode);
+            if (options.matchMode == ScanSettings.MATCH_MODE_AGGRESSIVE) {
+                union.matchMode = ScanSettings.MATCH_MODE_AGGRESSIVE;
+            }
+            union.numOfMatches = Math.max(union.numOfMatches, options.numOfMatches);
+            // sessions that asked for another callbackType emulate it, see ScanSession.setScanCallbackType
+            if (union.callbackType != options.callbackType) {
+                union.callbackType = ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+            }
+            union.reportDelay = Math.min(union.reportDelay, reportDelay);
+            union.legacy &= options.legacy;
+            if (union.phy != options.phy) {
+                union.phy = ScanSettings.PHY_LE_ALL_SUPPORTED;
+            }
+            union.maxDevices = Math.max(union.maxDevices, options.maxDevices);
+            if (options.deviceTimeout > 0 && (union.deviceTimeout == 0 || options.deviceTimeout < union.deviceTimeout)) {
+                union.deviceTimeout = options.deviceTimeout;
+            }
+        }
+        return union == null ? new ScanOptions() : union;
+    }
+
+    // identifies the hardware scan, the scanner only needs a restart when this changes
+    static String signature(List<ScanFilterSpec> filters, ScanOptions options) {
+        List<String> keys = new ArrayList<String>();
+        for (ScanFilterSpec spec : filters) {
+            keys.add(spec.toString());
+        }
+        Collections.sort(keys);
+
+        return options.scanMode + "|" + options.matchMode + "|" + options.numOfMatches + "|" + options.callbackType + "|" +
+                options.reportDelay + "|" + options.legacy + "|" + options.phy + "|" + keys;
+    }
+
+    private void updateSnapshot() {
+        active = sessions.values().toArray(new ScanSession[sessions.size()]);
+    }
+}
@@ -0,0 +1,138 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.json.JSONObject;
+
+/**
+ * Optional policy that switches a connection to high priority (short connection interval) and
+ * the 2M PHY while a writeLarge transfer runs or notifications arrive faster than a threshold,
+ * then drops back to the priority and PHY requested by the app.
+ *
+ * Transfers are reference counted. A notification burst starts when more than notificationRate
+ * notifications arrive in a one second window and ends holdTime ms after the last busy window.
+ */
+class ThroughputBoost {
+
+    private static final long RATE_WINDOW = 1000;
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final Peripheral peripheral;
+
+    private boolean enabled = false;
+    private boolean phy = true;          // switch to the 2M PHY as well
+    private int notificationRate = 0;    // notifications per second, 0 ignores notifications
+    private long holdTime = 2000;
+
+    private int transfers;
+    private boolean burst;
+    private boolean boosted;
+
+    private int notifications;
+    private long windowStart;
+    private long lastBusyWindow;
+
+    private final Runnable burstCheck = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ThroughputBoost.this) {
+                if (!burst) {
+                    return;
+                }
+                long idle = SystemClock.elapsedRealtime() - lastBusyWindow;
+                if (idle >= holdTime) {
+                    burst = false;
+                    update();
+                } else {
+                    handler.postDelayed(this, holdTime - idle);
+                }
+            }
+        }
+    };
+
+    ThroughputBoost(Peripheral peripheral) {
+        this.peripheral = peripheral;
+    }
+
+    synchronized void configure(JSONObject options) {
+        enabled = options.optBoolean("enabled", true);
+        phy = options.optBoolean("phy", phy);
+        notificationRate = Math.max(0, options.optInt("notificationRate", notificationRate));
+        holdTime = Math.max(0, options.optLong("holdTime", holdTime));
+        update();
+    }
+
+    boolean usesPhy() {
+        return phy;
+    }
+
+    synchronized void transferStarted() {
+        transfers++;
+        update();
+    }
+
+    synchronized void transferFinished() {
+        if (transfers > 0) {
+            transfers--;
+            update();
+        }
+    }
+
+    synchronized void onNotification() {
+        if (!enabled || notificationRate == 0) {
+            return;
+        }
+
+        notifications++;
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - windowStart;
+        if (elapsed < RATE_WINDOW) {
+            return;
+        }
+
+        if (notifications * 1000L / elapsed >= notificationRate) {
+            lastBusyWindow = now;
+            if (!burst) {
+                burst = true;
+                handler.postDelayed(burstCheck, holdTime);
+                update();
+            }
+        }
+        notifications = 0;
+        windowStart = now;
+    }
+
+    // the connection is gone, the next connection starts with the defaults
+    synchronized void reset() {
+        transfers = 0;
+        burst = false;
+        boosted = false;
+        notifications = 0;
+        handler.removeCallbacks(burstCheck);
+    }
+
+    private void update() {
+        boolean high = enabled && (transfers > 0 || burst);
+        if (high != boosted) {
+            boosted = high;
+            peripheral.applyHighThroughput(high);
+        }
+    }
+}
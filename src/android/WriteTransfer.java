@@ -0,0 +1,112 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * A buffer written to a characteristic in chunks, see Peripheral.queueWriteLarge.
+ *
+ * The whole transfer is one command in the queue. Peripheral writes the next chunk from
+ * onCharacteristicWrite, so JavaScript only gets progress messages and the final result.
+ */
+class WriteTransfer extends BLECommand {
+
+    // ATT header of a write request or command
+    static final int ATT_WRITE_OVERHEAD = 3;
+
+    // longest attribute value
+    private static final int MAX_CHUNK_SIZE = 512;
+
+    private final int writeType;
+    private final int requestedChunkSize; // 0 derives the chunk size from the MTU
+    private final long interval;
+    private final int progressStep; // percent, 0 disables progress messages
+
+    private int chunkSize;
+    private int offset;
+    private int nextProgress;
+
+    WriteTransfer(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, byte[] data, JSONObject options) {
+        super(callbackContext, serviceUUID, characteristicUUID, data, WRITE_LARGE);
+        if (options == null) {
+            options = new JSONObject();
+        }
+        writeType = options.optBoolean("withResponse", true) ?
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        requestedChunkSize = Math.max(0, options.optInt("chunkSize", 0));
+        interval = Math.max(0, options.optLong("interval", 0));
+        progressStep = Math.max(0, Math.min(100, options.optInt("progressStep", 10)));
+    }
+
+    // chunks fill the MTU unless a smaller chunk size was requested
+    void start(int mtu) {
+        int max = Math.min(mtu - ATT_WRITE_OVERHEAD, MAX_CHUNK_SIZE);
+        chunkSize = requestedChunkSize > 0 ? Math.min(requestedChunkSize, max) : max;
+        offset = 0;
+        nextProgress = progressStep;
+    }
+
+    int getWriteType() {
+        return writeType;
+    }
+
+    long getInterval() {
+        return interval;
+    }
+
+    int getOffset() {
+        return offset;
+    }
+
+    boolean isDone() {
+        return offset >= getData().length;
+    }
+
+    byte[] nextChunk() {
+        byte[] data = getData();
+        return Arrays.copyOfRange(data, offset, Math.min(offset + chunkSize, data.length));
+    }
+
+    // the chunk returned by nextChunk() was written
+    void advance() {
+        offset = Math.min(offset + chunkSize, getData().length);
+
+        if (progressStep > 0 && !isDone() && offset * 100L >= (long) nextProgress * getData().length) {
+            while (offset * 100L >= (long) nextProgress * getData().length) {
+                nextProgress += progressStep;
+            }
+
+            JSONObject json = new JSONObject();
+            try {
+                json.put("bytesSent", offset);
+                json.put("totalBytes", getData().length);
+            } catch (JSONException e) { // this shouldn't happen
+                e.printStackTrace();
+            }
+            PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+            result.setKeepCallback(true);
+            getCallbackContext().sendPluginResult(result);
+        }
+    }
+}
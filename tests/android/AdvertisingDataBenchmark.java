@@ -0,0 +1,175 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.megster.cordova.ble.central;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compares the service filter of pre API 21 scans before and after AdvertisingData: the old
+ * BLECentralPlugin.parseUuids, which built every 16 bit UUID with String.format, against
+ * AdvertisingData.hasServiceUuid on a re-wrapped instance. Runs on the JVM, like AdvertisingDataTest:
+ *
+ *     javac -d out src/android/AdvertisingData.java tests/android/AdvertisingDataBenchmark.java
+ *     java -cp out com.megster.cordova.ble.central.AdvertisingDataBenchmark
+ *
+ * Prints ns and bytes allocated per advertisement. The allocation count uses the HotSpot
+ * ThreadMXBean and is reported as n/a on other VMs.
+ */
+public class AdvertisingDataBenchmark {
+
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 2000000;
+
+    private static final UUID[] FILTER = {
+            UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("0000fe59-0000-1000-8000-00805f9b34fb")
+    };
+
+    // flags, 16 bit UUIDs 0x180d 0x180a 0x180f, manufacturer data, then a scan response with a name and zero padding
+    private static final byte[] RECORD = bytes(
+            0x02, 0x01, 0x06,
+            0x07, 0x03, 0x0d, 0x18, 0x0a, 0x18, 0x0f, 0x18,
+            0x09, 0xff, 0x59, 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06,
+            0x08, 0x09, 'S', 'e', 'n', 's', 'o', 'r', '1',
+            0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00);
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    // BLECentralPlugin.parseUuids before AdvertisingData
+    static List<UUID> parseUuids(byte[] adv_data) {
+        List<UUID> uuids = new ArrayList<UUID>();
+
+        int offset = 0;
+        while (offset < (adv_data.length - 2)) {
+            int len = adv_data[offset++];
+            if (len == 0) break;
+            if (offset + len > adv_data.length) break;
+
+            int type = adv_data[offset++];
+            len--; //subtract one byte for the type
+            switch (type) {
+                case 0x02: // Partial list of 16-bit UUIDs
+                case 0x03: // Complete list of 16-bit UUIDs
+                    while (len > 1) {
+                        int uuid16 = (adv_data[offset++] & 0xff) | ((adv_data[offset++] & 0xff) << 8);
+                        len -= 2;
+                        uuids.add(UUID.fromString(String.format(
+                                "%08x-0000-1000-8000-00805f9b34fb", uuid16)));
+                    }
+                    offset += len;
+                    break;
+
+                default:
+                    offset += len;
+                    break;
+            }
+        }
+
+        return uuids;
+    }
+
+    // the onLeScan filter before AdvertisingData
+    static boolean matchesBefore(byte[] record) {
+        boolean found = false;
+        for (UUID uuid : parseUuids(record)) {
+            for (UUID uuid2 : FILTER) {
+                if (uuid.equals(uuid2)) {
+                    found = true;
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    private static final AdvertisingData advertisingData = new AdvertisingData();
+
+    static boolean matchesAfter(byte[] record) {
+        advertisingData.wrap(record);
+        for (UUID uuid : FILTER) {
+            if (advertisingData.hasServiceUuid(uuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private interface Parser {
+        boolean matches(byte[] record);
+    }
+
+    private static final Parser BEFORE = new Parser() {
+        @Override
+        public boolean matches(byte[] record) {
+            return matchesBefore(record);
+        }
+    };
+
+    private static final Parser AFTER = new Parser() {
+        @Override
+        public boolean matches(byte[] record) {
+            return matchesAfter(record);
+        }
+    };
+
+    private static int sink;
+
+    private static void run(String name, Parser parser) {
+        for (int i = 0; i < WARMUP; i++) {
+            sink += parser.matches(RECORD) ? 1 : 0;
+        }
+
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += parser.matches(RECORD) ? 1 : 0;
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytesAfter = allocatedBytes();
+
+        String allocated = bytesBefore < 0 ? "n/a" : String.format("%.1f", (bytesAfter - bytesBefore) / (double) ITERATIONS);
+        System.out.println(String.format("%-8s %8.1f ns/op %10s B/op", name, elapsed / (double) ITERATIONS, allocated));
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) {
+        if (matchesBefore(RECORD) != matchesAfter(RECORD)) {
+            throw new AssertionError("the parsers disagree");
+        }
+        for (int round = 0; round < 3; round++) {
+            run("before", BEFORE);
+            run("after", AFTER);
+        }
+        // keeps the results alive
+        System.out.println(sink + " matches");
+    }
+}
@@ -0,0 +1,149 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.megster.cordova.ble.central;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parsing of malformed advertising records. AdvertisingData only uses java.*, so this runs on
+ * the JVM without a device:
+ *
+ *     javac -cp junit.jar -d out src/android/AdvertisingData.java tests/android/AdvertisingDataTest.java
+ *     java -cp junit.jar:hamcrest-core.jar:out org.junit.runner.JUnitCore com.megster.cordova.ble.central.AdvertisingDataTest
+ */
+public class AdvertisingDataTest {
+
+    private static final UUID HEART_RATE = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private static final UUID BATTERY = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID CUSTOM = UUID.fromString("f000aa00-0451-4000-b000-000000000000");
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    // CUSTOM in little endian order
+    private static final int[] CUSTOM_LE = {
+            0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0xb0, 0x00, 0x40, 0x51, 0x04, 0x00, 0xaa, 0x00, 0xf0 };
+
+    private static int[] uuid128Field(int type, int extra) {
+        int[] field = new int[2 + CUSTOM_LE.length + extra];
+        field[0] = 1 + CUSTOM_LE.length + extra;
+        field[1] = type;
+        System.arraycopy(CUSTOM_LE, 0, field, 2, CUSTOM_LE.length);
+        return field;
+    }
+
+    @Test
+    public void emptyAndNullRecords() {
+        AdvertisingData advertising = new AdvertisingData(null);
+        assertFalse(advertising.nextField());
+        assertNull(advertising.getLocalName());
+        assertEquals(AdvertisingData.TX_POWER_NOT_PRESENT, advertising.getTxPowerLevel());
+
+        advertising.wrap(new byte[0]);
+        assertFalse(advertising.nextField());
+        assertFalse(advertising.hasServiceUuid(HEART_RATE));
+    }
+
+    @Test
+    public void zeroLengthEndsTheRecord() {
+        // flags, then zero padding, then a name that must not be read
+        AdvertisingData advertising = new AdvertisingData(bytes(0x02, 0x01, 0x06, 0x00, 0x03, 0x09, 'h', 'i'));
+        assertTrue(advertising.nextField());
+        assertEquals(AdvertisingData.FLAGS, advertising.fieldType());
+        assertFalse(advertising.nextField());
+        assertFalse(advertising.nextField());
+        assertNull(advertising.getLocalName());
+    }
+
+    @Test
+    public void lengthOverrunningTheRecord() {
+        AdvertisingData advertising = new AdvertisingData(bytes(0x02, 0x0a, 0xf4, 0x09, 0x09, 'n', 'a', 'm', 'e'));
+        assertEquals(-12, advertising.getTxPowerLevel());
+        assertNull(advertising.getLocalName());
+        assertFalse(advertising.localNameStartsWith("na"));
+
+        // a length byte as the last byte
+        advertising.wrap(bytes(0x02, 0x0a, 0xf4, 0x05));
+        assertEquals(-12, advertising.getTxPowerLevel());
+        assertFalse(advertising.findField(AdvertisingData.MANUFACTURER_DATA));
+    }
+
+    @Test
+    public void fieldsWithoutData() {
+        // TX power and manufacturer data with the type byte only
+        AdvertisingData advertising = new AdvertisingData(bytes(0x01, 0x0a, 0x02, 0xff, 0x59));
+        assertEquals(AdvertisingData.TX_POWER_NOT_PRESENT, advertising.getTxPowerLevel());
+        assertFalse(advertising.findManufacturerData(0x0059));
+        assertFalse(advertising.findManufacturerData(0x59));
+    }
+
+    @Test
+    public void truncatedUuid16List() {
+        // 0x180d followed by one byte of 0x180f
+        AdvertisingData advertising = new AdvertisingData(bytes(0x04, 0x03, 0x0d, 0x18, 0x0f));
+        assertTrue(advertising.hasServiceUuid(HEART_RATE));
+        assertFalse(advertising.hasServiceUuid(BATTERY));
+    }
+
+    @Test
+    public void truncatedUuid32List() {
+        AdvertisingData advertising = new AdvertisingData(bytes(0x08, 0x05, 0x0d, 0x18, 0x00, 0x00, 0x0f, 0x18, 0x00));
+        assertTrue(advertising.hasServiceUuid(HEART_RATE));
+        assertFalse(advertising.hasServiceUuid(BATTERY));
+    }
+
+    @Test
+    public void truncatedUuid128List() {
+        AdvertisingData advertising = new AdvertisingData(bytes(uuid128Field(AdvertisingData.COMPLETE_UUID128, 0)));
+        assertTrue(advertising.hasServiceUuid(CUSTOM));
+
+        // one UUID and a partial second one
+        advertising.wrap(bytes(uuid128Field(AdvertisingData.INCOMPLETE_UUID128, 8)));
+        assertTrue(advertising.hasServiceUuid(CUSTOM));
+        assertFalse(advertising.hasServiceUuid(HEART_RATE));
+
+        // less than one UUID
+        int[] field = uuid128Field(AdvertisingData.COMPLETE_UUID128, 0);
+        field[0] = 1 + 15;
+        int[] truncated = new int[2 + 15];
+        System.arraycopy(field, 0, truncated, 0, truncated.length);
+        advertising.wrap(bytes(truncated));
+        assertFalse(advertising.hasServiceUuid(CUSTOM));
+    }
+
+    @Test
+    public void truncatedServiceData() {
+        // 16 bit service data with a one byte UUID, then valid data for 0x180f
+        AdvertisingData advertising = new AdvertisingData(bytes(0x02, 0x16, 0x0d, 0x04, 0x16, 0x0f, 0x18, 0x64));
+        assertFalse(advertising.findServiceData(HEART_RATE));
+        assertTrue(advertising.findServiceData(BATTERY));
+        assertEquals(1, advertising.fieldLength());
+        assertTrue(advertising.fieldMatches(bytes(0x64), null));
+        assertFalse(advertising.fieldMatches(bytes(0x64, 0x00), null));
+    }
+}
@@ -0,0 +1,149 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.megster.cordova.ble.central;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Allocation per notification before and after NotificationSubscription, on the JVM. The Android
+ * and Cordova classes the subscription uses are replaced by the stand-ins in tests/android/jvm,
+ * org.json comes from its jar:
+ *
+ *     javac -cp json.jar -d out tests/android/jvm/android/os/*.java tests/android/jvm/org/apache/cordova/*.java \
+ *         src/android/NotificationSubscription.java src/android/NotificationBatcher.java src/android/NotificationRing.java \
+ *         tests/android/NotificationBenchmark.java
+ *     java -cp json.jar:out com.megster.cordova.ble.central.NotificationBenchmark
+ *
+ * Before is onCharacteristicChanged of the original plugin: the debug log message, the
+ * "service|characteristic|instance" key and one PluginResult per notification. After is
+ * NotificationSubscription.onNotification with each policy, at one notification per ms with
+ * the main thread tasks run in between. Left out of both: the value array the stack allocates for
+ * every notification, the base64 copy Cordova makes of every result, and the subscription lookup,
+ * a SparseArray.get since the handles were added, which doesn't allocate.
+ *
+ * Prints bytes allocated and results sent to JavaScript per notification, through the HotSpot
+ * ThreadMXBean, n/a on other VMs.
+ */
+public class NotificationBenchmark {
+
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 1000000;
+
+    private static final UUID SERVICE = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHARACTERISTIC = UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+
+    private static final byte[] VALUE = new byte[20];
+
+    private interface Path {
+        void onNotification(byte[] value);
+    }
+
+    // Peripheral.onCharacteristicChanged before the subscriptions
+    private static class Before implements Path {
+        private final Map<String, CallbackContext> notificationCallbacks = new HashMap<String, CallbackContext>();
+        private final Object characteristic = new Object(); // stands in for BluetoothGattCharacteristic.toString()
+        private int logged;
+
+        Before(CallbackContext callbackContext) {
+            notificationCallbacks.put(String.valueOf(SERVICE) + "|" + CHARACTERISTIC + "|" + 0, callbackContext);
+        }
+
+        @Override
+        public void onNotification(byte[] value) {
+            String message = "onCharacteristicChanged " + characteristic;
+            logged += message.length();
+
+            CallbackContext callback = notificationCallbacks.get(String.valueOf(SERVICE) + "|" + CHARACTERISTIC + "|" + 0);
+            if (callback != null) {
+                PluginResult result = new PluginResult(PluginResult.Status.OK, value);
+                result.setKeepCallback(true);
+                callback.sendPluginResult(result);
+            }
+        }
+    }
+
+    private static class After implements Path {
+        private final NotificationSubscription subscription;
+
+        After(CallbackContext callbackContext, JSONObject options) throws JSONException {
+            subscription = new NotificationSubscription(callbackContext, VALUE.length, options);
+        }
+
+        @Override
+        public void onNotification(byte[] value) {
+            subscription.onNotification(value);
+        }
+    }
+
+    private static void run(String name, Path path, CallbackContext callbackContext) {
+        for (int i = 0; i < WARMUP; i++) {
+            notify(path);
+        }
+
+        long sentBefore = callbackContext.getSent();
+        long bytesBefore = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            notify(path);
+        }
+        long bytesAfter = allocatedBytes();
+        long sent = callbackContext.getSent() - sentBefore;
+
+        String allocated = bytesBefore < 0 ? "n/a" : String.format("%.1f", (bytesAfter - bytesBefore) / (double) ITERATIONS);
+        System.out.println(String.format("%-22s %8s B/notification %8.3f results/notification", name, allocated, sent / (double) ITERATIONS));
+    }
+
+    private static void notify(Path path) {
+        SystemClock.advance(1);
+        path.onNotification(VALUE);
+        Handler.runDue();
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void after(String name, JSONObject options) throws JSONException {
+        CallbackContext callbackContext = new CallbackContext();
+        run(name, new After(callbackContext, options), callbackContext);
+    }
+
+    public static void main(String[] args) throws JSONException {
+        CallbackContext callbackContext = new CallbackContext();
+        run("before", new Before(callbackContext), callbackContext);
+
+        after("none", new JSONObject());
+        after("decimate 10", new JSONObject().put("backpressure", "decimate").put("decimation", 10));
+        after("conflate 50 ms", new JSONObject().put("backpressure", "conflate").put("interval", 50));
+        after("dropOldest 50 ms", new JSONObject().put("backpressure", "dropOldest").put("interval", 50));
+        after("batchInterval 50 ms", new JSONObject().put("batchInterval", 50));
+        after("batchSize 32", new JSONObject().put("batchSize", 32));
+    }
+}
@@ -0,0 +1,88 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package android.os;
+
+/**
+ * JVM stand-in for the benchmarks, not shipped with the plugin. Posted tasks wait in preallocated
+ * arrays until the benchmark calls runDue, so posting doesn't add to the measured allocations,
+ * like Android's pooled messages.
+ */
+public class Handler {
+
+    private static final int CAPACITY = 1024;
+    private static final Runnable[] tasks = new Runnable[CAPACITY];
+    private static final long[] due = new long[CAPACITY];
+    private static int size = 0;
+
+    public Handler(Looper looper) {
+    }
+
+    public final boolean post(Runnable runnable) {
+        return postDelayed(runnable, 0);
+    }
+
+    public final boolean postDelayed(Runnable runnable, long delay) {
+        synchronized (Handler.class) {
+            if (size == CAPACITY) {
+                throw new IllegalStateException("too many posted tasks");
+            }
+            tasks[size] = runnable;
+            due[size] = SystemClock.elapsedRealtime() + delay;
+            size++;
+        }
+        return true;
+    }
+
+    public final void removeCallbacks(Runnable runnable) {
+        synchronized (Handler.class) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (tasks[i] != runnable) {
+                    tasks[kept] = tasks[i];
+                    due[kept] = due[i];
+                    kept++;
+                }
+            }
+            for (int i = kept; i < size; i++) {
+                tasks[i] = null;
+            }
+            size = kept;
+        }
+    }
+
+    // run the tasks that are due, in the order they were posted
+    public static void runDue() {
+        while (true) {
+            Runnable task = null;
+            synchronized (Handler.class) {
+                long now = SystemClock.elapsedRealtime();
+                for (int i = 0; i < size; i++) {
+                    if (due[i] <= now) {
+                        task = tasks[i];
+                        System.arraycopy(tasks, i + 1, tasks, i, size - i - 1);
+                        System.arraycopy(due, i + 1, due, i, size - i - 1);
+                        tasks[--size] = null;
+                        break;
+                    }
+                }
+            }
+            if (task == null) {
+                return;
+            }
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package android.os;
+
+/**
+ * JVM stand-in for the benchmarks, not shipped with the plugin. The clock only moves when the
+ * benchmark advances it, so the interval based policies behave the same on every run.
+ */
+public final class SystemClock {
+
+    private static long nanos = 1000000000L;
+
+    private SystemClock() {
+    }
+
+    public static long elapsedRealtime() {
+        return nanos / 1000000L;
+    }
+
+    public static long elapsedRealtimeNanos() {
+        return nanos;
+    }
+
+    public static void advance(long ms) {
+        nanos += ms * 1000000L;
+    }
+}
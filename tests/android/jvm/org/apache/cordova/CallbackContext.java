@@ -0,0 +1,32 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package org.apache.cordova;
+
+// JVM stand-in for the benchmarks, not shipped with the plugin, counts the results sent to JavaScript
+public class CallbackContext {
+
+    private long sent;
+    private PluginResult last; // Cordova queues the result, so it has to escape like there
+
+    public void sendPluginResult(PluginResult result) {
+        sent++;
+        last = result;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+}
@@ -0,0 +1,56 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package org.apache.cordova;
+
+/**
+ * JVM stand-in for the benchmarks, not shipped with the plugin. Cordova's PluginResult also
+ * encodes an ArrayBuffer as base64 when it is created, which this one doesn't, so the benchmarks
+ * count one object per result and leave out the encoding, which is the same before and after.
+ */
+public class PluginResult {
+
+    public enum Status { OK, ERROR }
+
+    private final Status status;
+    private final Object message;
+    private boolean keepCallback = false;
+
+    public PluginResult(Status status, byte[] message) {
+        this.status = status;
+        this.message = message;
+    }
+
+    public PluginResult(Status status, int message) {
+        this.status = status;
+        this.message = null;
+    }
+
+    public void setKeepCallback(boolean keepCallback) {
+        this.keepCallback = keepCallback;
+    }
+
+    public boolean getKeepCallback() {
+        return keepCallback;
+    }
+
+    public Status getStatusValue() {
+        return status;
+    }
+
+    public Object getMessageValue() {
+        return message;
+    }
+}
@@ -47,6 +47,143 @@ function convertToNativeJS(object) {
     });
 }
 
+// ArrayBuffers nested in the arguments are not converted by cordova.exec, send them as arrays of numbers
+var toByteArray = function(value) {
+    if (value instanceof ArrayBuffer) {
+        return Array.prototype.slice.call(new Uint8Array(value));
+    } else if (value && value.buffer instanceof ArrayBuffer) {
+        return Array.prototype.slice.call(new Uint8Array(value.buffer, value.byteOffset, value.byteLength));
+    }
+    return value;
+};
+
+var byteArrayKeys = ['manufacturerData', 'manufacturerDataMask', 'serviceData', 'serviceDataMask'];
+
+function convertScanFilters(filters) {
+    return filters.map(function(filter) {
+        var copy = {};
+        Object.keys(filter).forEach(function(key) {
+            copy[key] = byteArrayKeys.indexOf(key) !== -1 ? toByteArray(filter[key]) : filter[key];
+        });
+        return copy;
+    });
+}
+
+var toHex = function(byte) {
+    return (byte < 16 ? '0' : '') + byte.toString(16).toUpperCase();
+};
+
+// Decode the binary scan format written by ScanResultEncoder.java (Android)
+// advertising is a Uint8Array view into the message, the payload is not copied
+function decodeScanResults(buffer) {
+    var view = new DataView(buffer);
+    if (view.getUint8(0) !== 1) {
+        throw new Error("Unsupported scan result format " + view.getUint8(0));
+    }
+
+    var count = view.getUint16(2, true);
+    var results = new Array(count);
+    var offset = 4;
+
+    for (var i = 0; i < count; i++) {
+        var id = toHex(view.getUint8(offset));
+        for (var j = 1; j < 6; j++) {
+            id += ':' + toHex(view.getUint8(offset + j));
+        }
+        var length = view.getUint16(offset + 16, true);
+        results[i] = {
+            id: id,
+            rssi: view.getInt8(offset + 6),
+            timestamp: view.getFloat64(offset + 8, true),
+            advertising: new Uint8Array(buffer, offset + 18, length)
+        };
+        offset += 18 + length;
+    }
+
+    return results;
+}
+
+// batched notifications, see NotificationBatcher.java for the format
+function decodeNotifications(buffer) {
+    var view = new DataView(buffer);
+    if (view.getUint8(0) !== 1) {
+        throw new Error("Unsupported notification format " + view.getUint8(0));
+    }
+
+    var count = view.getUint16(2, true);
+    var notifications = new Array(count);
+    var offset = 4;
+
+    for (var i = 0; i < count; i++) {
+        var length = view.getUint16(offset + 8, true);
+        notifications[i] = {
+            timestamp: view.getFloat64(offset, true),
+            value: buffer.slice(offset + 10, offset + 10 + length)
+        };
+        offset += 10 + length;
+    }
+
+    return notifications;
+}
+
+// success callback for startScanWithOptions and startScanSession
+function scanResultWrapper(options, success) {
+    var batched = options.batchSize > 0 || options.batchInterval > 0;
+    return function(result) {
+        if (result instanceof ArrayBuffer) {
+            var peripherals = decodeScanResults(result);
+            success(batched ? peripherals : peripherals[0]);
+        } else {
+            convertToNativeJS(result);
+            success(result);
+        }
+    };
+}
+
+function nativeScanOptions(options) {
+    var nativeOptions = {};
+    Object.keys(options).forEach(function(key) {
+        nativeOptions[key] = key === 'filters' ? convertScanFilters(options.filters) : options[key];
+    });
+    return nativeOptions;
+}
+
+var scanSessionCount = 0;
+
+// the connect callback receives the peripheral, RSSI numbers and, for connectWithOptions, status messages
+// and the peripheral again if the services differ from the cached ones the connect was answered with
+function connectSuccessWrapper(success, rssi, status, servicesChanged) {
+    return function(arg) {
+        // is this the rssi number?
+        if (typeof arg === "number") {
+            // do we have an rssi callback?
+            if (rssi) {
+                // call it with the arg
+                rssi(arg)
+            }
+        }
+        else if (arg.status) {
+            if (status) {
+                status(arg);
+            }
+        }
+        else {
+            if (success !== null) {
+                // otherwise, this is device success, so send it to the success callback
+                convertToNativeJS(arg);
+                success(arg);
+                // free any memory / references held by this function we will no longer call
+                success = null;
+            }
+            else if (servicesChanged) {
+                convertToNativeJS(arg);
+                servicesChanged(arg);
+            }
+            
+        }
+    };
+}
+
 module.exports = {
 
     scan: function (services, seconds, success, failure) {
@@ -65,10 +202,52 @@ module.exports = {
         cordova.exec(successWrapper, failure, 'BLE', 'startScan', [services]);
     },
 
+    // options are only used on Android, other platforms behave like startScan
+    startScanWithOptions: function (services, options, success, failure) {
+        options = options || {};
+        var successWrapper = scanResultWrapper(options, success);
+        if (cordova.platformId === 'android') {
+            cordova.exec(successWrapper, failure, 'BLE', 'startScanWithOptions', [services, nativeScanOptions(options)]);
+        } else {
+            cordova.exec(successWrapper, failure, 'BLE', 'startScan', [services]);
+        }
+    },
+
     stopScan: function (success, failure) {
         cordova.exec(success, failure, 'BLE', 'stopScan', []);
     },
 
+    // returns the session id to pass to stopScanSession
+    // sessions are only supported on Android, other platforms share a single startScan
+    startScanSession: function (services, options, success, failure) {
+        options = options || {};
+        var sessionId = 'session-' + (++scanSessionCount);
+        var successWrapper = scanResultWrapper(options, success);
+        if (cordova.platformId === 'android') {
+            cordova.exec(successWrapper, failure, 'BLE', 'startScanSession', [sessionId, services, nativeScanOptions(options)]);
+        } else {
+            cordova.exec(successWrapper, failure, 'BLE', 'startScan', [services]);
+        }
+        return sessionId;
+    },
+
+    stopScanSession: function (session_id, success, failure) {
+        if (cordova.platformId === 'android') {
+            cordova.exec(success, failure, 'BLE', 'stopScanSession', [session_id]);
+        } else {
+            cordova.exec(success, failure, 'BLE', 'stopScan', []);
+        }
+    },
+
+
+    // the most recent advertisements of a scanned peripheral, oldest first (Android only)
+    getAdvertisingHistory: function (device_id, success, failure) {
+        var successWrapper = function(history) {
+            convertToNativeJS(history);
+            success(history);
+        };
+        cordova.exec(successWrapper, failure, 'BLE', 'getAdvertisingHistory', [device_id]);
+    },
 
     // this will probably be removed
     list: function (success, failure) {
@@ -76,49 +255,141 @@ module.exports = {
     },
 
     connect: function (device_id, success, failure, rssi) {
-        var successWrapper = function(arg) {
-            // is this the rssi number?
-            if (typeof arg === "number") {
-                // do we have an rssi callback?
-                if (rssi) {
-                    // call it with the arg
-                    rssi(arg)
-                }
-            }
-            else {
-                if (success !== null) {
-                    // otherwise, this is device success, so send it to the success callback
-                    convertToNativeJS(arg);
-                    success(arg);
-                    // free any memory / references held by this function we will no longer call
-                    success = null;
-                }
-                
-            }
-        };
+        var successWrapper = connectSuccessWrapper(success, rssi);
         cordova.exec(successWrapper, failure, 'BLE', 'connect', [device_id]);
     },
 
+    // options.onStatus is called with queue position and retry messages (Android only)
+    // options.onServicesChanged is called with the peripheral when useGattCache answered with an outdated layout (Android only)
+    connectWithOptions: function (device_id, options, success, failure, rssi) {
+        options = options || {};
+        if (cordova.platformId === 'android') {
+            var nativeOptions = {};
+            Object.keys(options).forEach(function(key) {
+                if (key !== 'onStatus' && key !== 'onServicesChanged') {
+                    nativeOptions[key] = options[key];
+                }
+            });
+            var successWrapper = connectSuccessWrapper(success, rssi, options.onStatus, options.onServicesChanged);
+            cordova.exec(successWrapper, failure, 'BLE', 'connectWithOptions', [device_id, nativeOptions]);
+        } else {
+            module.exports.connect(device_id, success, failure, rssi);
+        }
+    },
+
+    // Android only
+    configureConnections: function (options, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'configureConnections', [options]);
+    },
+
+    // devices with a persisted service layout, see useGattCache (Android only)
+    getGattCache: function (success, failure) {
+        cordova.exec(success, failure, 'BLE', 'getGattCache', []);
+    },
+
+    // a null device_id clears every device (Android only)
+    clearGattCache: function (device_id, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'clearGattCache', [device_id]);
+    },
+
     disconnect: function (device_id, success, failure) {
         cordova.exec(success, failure, 'BLE', 'disconnect', [device_id]);
     },
 
     // characteristic value comes back as ArrayBuffer in the success callback
-    read: function (device_id, service_uuid, characteristic_uuid, success, failure) {
-        cordova.exec(success, failure, 'BLE', 'read', [device_id, service_uuid, characteristic_uuid]);
+    // options {priority, timeout} are Android only
+    // on Android a null service_uuid addresses the characteristic by the handle from the peripheral data
+    read: function (device_id, service_uuid, characteristic_uuid, success, failure, options) {
+        cordova.exec(success, failure, 'BLE', 'read', [device_id, service_uuid, characteristic_uuid, options || {}]);
+    },
+
+    // success gets the last value read or notified if it is at most max_age ms old, otherwise the characteristic is read
+    readCached: function (device_id, service_uuid, characteristic_uuid, max_age, success, failure, options) {
+        if (cordova.platformId === 'android') {
+            cordova.exec(success, failure, 'BLE', 'readCached', [device_id, service_uuid, characteristic_uuid, max_age, options || {}]);
+        } else {
+            cordova.exec(success, failure, 'BLE', 'read', [device_id, service_uuid, characteristic_uuid]);
+        }
+    },
+
+    // hit and miss counts of readCached (Android only)
+    getCacheStats: function (device_id, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'getCacheStats', [device_id]);
     },
 
     // value must be an ArrayBuffer
-    write: function (device_id, service_uuid, characteristic_uuid, value, success, failure) {
-        cordova.exec(success, failure, 'BLE', 'write', [device_id, service_uuid, characteristic_uuid, value]);
+    write: function (device_id, service_uuid, characteristic_uuid, value, success, failure, options) {
+        cordova.exec(success, failure, 'BLE', 'write', [device_id, service_uuid, characteristic_uuid, value, options || {}]);
     },
 
     // value must be an ArrayBuffer
-    writeWithoutResponse: function (device_id, service_uuid, characteristic_uuid, value, success, failure) {
-        cordova.exec(success, failure, 'BLE', 'writeWithoutResponse', [device_id, service_uuid, characteristic_uuid, value]);
+    writeWithoutResponse: function (device_id, service_uuid, characteristic_uuid, value, success, failure, options) {
+        cordova.exec(success, failure, 'BLE', 'writeWithoutResponse', [device_id, service_uuid, characteristic_uuid, value, options || {}]);
     },
 
     // value must be an ArrayBuffer
+    // value is written in chunks, options.onProgress is called with {bytesSent, totalBytes} (Android only)
+    writeLarge: function (device_id, service_uuid, characteristic_uuid, value, options, success, failure) {
+        options = options || {};
+        var nativeOptions = {};
+        Object.keys(options).forEach(function(key) {
+            if (key !== 'onProgress') {
+                nativeOptions[key] = options[key];
+            }
+        });
+        var successWrapper = function(arg) {
+            if (arg && typeof arg.bytesSent === 'number') {
+                if (options.onProgress) {
+                    options.onProgress(arg);
+                }
+            } else if (success) {
+                success();
+            }
+        };
+        cordova.exec(successWrapper, failure, 'BLE', 'writeLarge', [device_id, service_uuid, characteristic_uuid, value, nativeOptions]);
+    },
+
+    // success is called with the negotiated MTU (Android only)
+    requestMtu: function (device_id, mtu, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'requestMtu', [device_id, mtu]);
+    },
+
+    // priority is "balanced", "high" or "lowPower" (Android only)
+    requestConnectionPriority: function (device_id, priority, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'requestConnectionPriority', [device_id, priority]);
+    },
+
+    // phy is "1m", "2m", "coded" or an array of them, success is called with {txPhy, rxPhy} (Android only)
+    setPreferredPhy: function (device_id, phy, phyOptions, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'setPreferredPhy', [device_id, phy, phyOptions || 'noPreferred']);
+    },
+
+    // Android only
+    setThroughputPolicy: function (device_id, options, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'setThroughputPolicy', [device_id, options]);
+    },
+
+    // default timeouts in ms by operation: {read, write, notify, mtu, phy} (Android only)
+    setCommandTimeouts: function (options, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'setCommandTimeouts', [options]);
+    },
+
+    // fail queued commands, filter is {service, characteristic, priority}
+    // success is called with the number of cancelled commands (Android only)
+    cancelCommands: function (device_id, filter, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'cancelCommands', [device_id, filter || {}]);
+    },
+
+    // queue wait times per priority lane (Android only)
+    getQueueStats: function (device_id, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'getQueueStats', [device_id]);
+    },
+
+    // Android only
+    setWriteWithoutResponseWindow: function (device_id, window, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'setWriteWithoutResponseWindow', [device_id, window]);
+    },
+
     writeCommand: function (device_id, service_uuid, characteristic_uuid, value, success, failure) {
         console.log("WARNING: writeCommand is deprecated, use writeWithoutResponse");
         cordova.exec(success, failure, 'BLE', 'writeWithoutResponse', [device_id, service_uuid, characteristic_uuid, value]);
@@ -131,7 +402,15 @@ module.exports = {
     },
 
     // success callback is called on notification
-    startNotification: function (device_id, service_uuid, characteristic_uuid, data, failure, success) {
+    // with options.batchSize, batchBytes or batchInterval it is called with an array of {timestamp, value} (Android only)
+    startNotification: function (device_id, service_uuid, characteristic_uuid, data, failure, success, options) {
+        options = options || {};
+        var onData = data;
+        if (options.batchSize > 0 || options.batchBytes > 0 || options.batchInterval > 0) {
+            onData = function(buffer) {
+                data(decodeNotifications(buffer));
+            };
+        }
         var failureWrapper = function(error) {
           if (error) {
               failure(error);
@@ -140,7 +419,46 @@ module.exports = {
               success();
           }
         };
-        cordova.exec(data, failureWrapper, 'BLE', 'startNotification', [device_id, service_uuid, characteristic_uuid]);
+        cordova.exec(onData, failureWrapper, 'BLE', 'startNotification', [device_id, service_uuid, characteristic_uuid, options]);
+    },
+
+    // run a list of operations in one call, values are ArrayBuffers
+    // success gets an array of {op, ok, value, error}, failure gets {index, error, results} (Android only)
+    batch: function (device_id, operations, options, success, failure) {
+        var nativeOperations = operations.map(function(operation) {
+            var nativeOperation = {};
+            Object.keys(operation).forEach(function(key) {
+                nativeOperation[key] = toByteArray(operation[key]);
+            });
+            return nativeOperation;
+        });
+        var decodeResults = function(results) {
+            results.forEach(function(result) {
+                if (typeof result.value === 'string') {
+                    result.value = base64ToArrayBuffer(result.value);
+                }
+            });
+            return results;
+        };
+        var successWrapper = function(results) {
+            if (success) {
+                success(decodeResults(results));
+            }
+        };
+        var failureWrapper = function(error) {
+            if (error && error.results) {
+                decodeResults(error.results);
+            }
+            if (failure) {
+                failure(error);
+            }
+        };
+        cordova.exec(successWrapper, failureWrapper, 'BLE', 'batch', [device_id, nativeOperations, options || {}]);
+    },
+
+    // received, delivered and dropped notification counts per subscription (Android only)
+    getNotificationStats: function (device_id, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'getNotificationStats', [device_id]);
     },
 
     // success callback is called when the descriptor 0x2902 is written
@@ -153,6 +471,15 @@ module.exports = {
         cordova.exec(success, failure, 'BLE', 'indicate', [device_id, service_uuid, characteristic_uuid]);
     },
 
+    // Android only
+    startProximity: function (device_id, options, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'startProximity', [device_id, options || {}]);
+    },
+
+    stopProximity: function (device_id, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'stopProximity', [device_id]);
+    },
+
     isConnected: function (device_id, success, failure) {
         cordova.exec(success, failure, 'BLE', 'isConnected', [device_id]);
     },